@@ -0,0 +1,24 @@
+/**
+ * This is an interface for a cached read-only file not stored as a plain file,
+ * the subset of RandomAccessFile used by proxy read, lseek and close.
+ *
+ * Author: Yuqi Liu
+ */
+
+import java.io.IOException;
+
+public interface CachedFile {
+	/**
+	 * Read up to buf.length bytes from file pointer
+	 * @return bytes read, -1 at end of file
+	 */
+	int read(byte[] buf) throws IOException;
+
+	void seek(long pos) throws IOException;
+
+	long getFilePointer() throws IOException;
+
+	long length() throws IOException;
+
+	void close() throws IOException;
+}
@@ -0,0 +1,74 @@
+/**
+ * This is a class for CRC32C checksums of transferred chunks.
+ * CRC32C is computed with hardware instructions on most platforms, so checking
+ * every chunk costs much less than resending it.
+ *
+ * Author: Yuqi Liu
+ */
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32C;
+
+public class Checksums {
+	public static final int RETRIES = Integer.getInteger("transfer.retries", 3);       // retries of one chunk
+	public static final int BACKOFF = Integer.getInteger("transfer.backoff", 100);     // ms, grows with retries
+
+	/**
+	 * CRC32C of a buffer range
+	 * @param buf: data
+	 * @param off: start offset
+	 * @param len: bytes
+	 * @return checksum
+	 */
+	public static long crc32c(byte[] buf, int off, int len) {
+		CRC32C crc = new CRC32C();
+		crc.update(buf, off, len);
+		return crc.getValue();
+	}
+
+	/**
+	 * CRC32C of a file prefix
+	 * @param file: opened file, file pointer is moved
+	 * @param len: prefix bytes
+	 * @return checksum
+	 * @throws IOException
+	 */
+	public static long crc32c(RandomAccessFile file, long len) throws IOException {
+		return crc32c(file, 0, len);
+	}
+
+	/**
+	 * CRC32C of a file range
+	 * @param file: opened file, file pointer is moved
+	 * @param start: range start
+	 * @param len: range bytes
+	 * @return checksum
+	 * @throws IOException
+	 */
+	public static long crc32c(RandomAccessFile file, long start, long len) throws IOException {
+		CRC32C crc = new CRC32C();
+		byte[] buf = new byte[64 * 1024];
+		file.seek(start);
+		long left = len;
+		while (left > 0) {
+			int size = file.read(buf, 0, (int) Math.min(buf.length, left));
+			if (size < 0) break;
+			crc.update(buf, 0, size);
+			left -= size;
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Sleep before a retry, longer after each failure
+	 * @param failures: failures so far
+	 */
+	public static void backoff(int failures) {
+		try {
+			Thread.sleep((long) BACKOFF * failures);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
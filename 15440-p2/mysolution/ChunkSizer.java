@@ -0,0 +1,92 @@
+/**
+ * This is a class for adaptive chunk sizing of one server connection.
+ *
+ * Every RPC call to the server is timed. Small calls update the round-trip time,
+ * data calls update the throughput, both smoothed by EWMA.
+ * Chunk size is picked so that one chunk takes about TARGET_MS (at least a few RTTs)
+ * on the wire, bounded by [MIN_CHUNK, max] where max is negotiated with the server.
+ *
+ * Bounds can be configured with -Dchunk.min, -Dchunk.max, -Dchunk.target and -Dchunk.inline.
+ *
+ * Author: Yuqi Liu
+ */
+
+import java.rmi.RemoteException;
+
+public class ChunkSizer {
+	public static final int MIN_CHUNK = Integer.getInteger("chunk.min", 64 * 1024);        // lower bound
+	public static final int MAX_CHUNK = Integer.getInteger("chunk.max", 8 * 1024 * 1024);  // upper bound
+	public static final int INLINE_LEN = Integer.getInteger("chunk.inline", 409600);       // inline data on open
+	private static final int TARGET_MS = Integer.getInteger("chunk.target", 200);          // wire time per chunk
+	private static final int RTT_SAMPLE = 4096;   // calls moving less bytes only measure RTT
+	private static final int RTT_FACTOR = 4;      // chunk takes at least RTT_FACTOR round trips
+	private static final double ALPHA = 0.25;     // EWMA weight of new sample
+
+	private int max = MAX_CHUNK;     // negotiated upper bound
+	private int inline = INLINE_LEN; // negotiated inline threshold
+	private double rtt = -1;         // smoothed round-trip time in ms
+	private double rate = -1;        // smoothed throughput in bytes per ms
+	private int chunk = 409600;      // current chunk size
+
+	public ChunkSizer() {
+		chunk = clamp(chunk);
+	}
+
+	/**
+	 * Negotiate bounds with server, server may only lower them.
+	 * @param server server RPC interface object
+	 * @throws RemoteException
+	 */
+	public void negotiate(RemoteFile server) throws RemoteException {
+		long start = System.nanoTime();
+		int limit = server.negotiateChunk(MAX_CHUNK);
+		sample(0, System.nanoTime() - start);
+		synchronized (this) {
+			max = Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, limit));
+			inline = Math.min(INLINE_LEN, max);
+			chunk = clamp(chunk);
+		}
+	}
+
+	/**
+	 * Record a finished RPC call
+	 * @param bytes: data bytes moved by the call
+	 * @param nanos: elapsed time of the call
+	 */
+	public synchronized void sample(long bytes, long nanos) {
+		double ms = nanos / 1e6;
+		if (bytes < RTT_SAMPLE || rtt < 0) {
+			rtt = rtt < 0 ? ms : (1 - ALPHA) * rtt + ALPHA * ms;
+			if (bytes < RTT_SAMPLE) return;
+		}
+
+		// time spent on the wire besides one round trip
+		double wire = Math.max(ms - rtt, ms / 2);
+		double crt = bytes / Math.max(wire, 0.001);
+		rate = rate < 0 ? crt : (1 - ALPHA) * rate + ALPHA * crt;
+
+		double target = Math.max(TARGET_MS, RTT_FACTOR * rtt);
+		chunk = clamp((long) (rate * target));
+	}
+
+	/**
+	 * Get chunk size for next streaming call
+	 * @return chunk size in byte
+	 */
+	public synchronized int chunk() { return chunk; }
+
+	/**
+	 * Get threshold of data sent inline with open and close
+	 * @return inline threshold in byte
+	 */
+	public synchronized int inline() { return inline; }
+
+	private int clamp(long len) {
+		return (int) Math.max(MIN_CHUNK, Math.min(max, len));
+	}
+
+	public synchronized String toString() {
+		return "--Chunk:" + chunk + " RTT(ms):" + String.format("%.2f", rtt)
+				+ " Rate(B/ms):" + String.format("%.0f", rate);
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * This is a class for the content-addressed chunk store of proxy cache.
+ *
+ * Chunks live under cacheDir/.chunks/ named by SHA-1, with a reference count
+ * for every manifest (and every occurrence in it) using the chunk.
+ * A chunk file is deleted when its last reference is released.
+ *
+ * Author: Yuqi Liu
+ */
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ChunkStore {
+	private final String dir;                                            // chunk directory
+	private final Map<String, Integer> refs = new HashMap<String, Integer>();   // hash - reference count
+	private final Map<String, Integer> sizes = new HashMap<String, Integer>();  // hash - chunk size
+	private long bytes = 0;                                              // bytes of all chunks
+
+	public ChunkStore(String cacheDir) {
+		dir = cacheDir + ".chunks/";
+		File file = new File(dir);
+		file.mkdirs();
+		// chunks left from last run are not referenced by anything
+		File[] old = file.listFiles();
+		if (old != null) for (File f : old) f.delete();
+	}
+
+	/**
+	 * Add a reference to a chunk if stored
+	 * @param hash: chunk hash
+	 * @return true if chunk is stored
+	 */
+	public synchronized boolean acquire(String hash) {
+		Integer ref = refs.get(hash);
+		if (ref == null) return false;
+		refs.put(hash, ref + 1);
+		return true;
+	}
+
+	/**
+	 * Store a chunk with one reference, or add a reference if already stored
+	 * @param hash: chunk hash
+	 * @param buf: data
+	 * @param off: start
+	 * @param len: size
+	 * @return bytes newly stored
+	 * @throws IOException
+	 */
+	public synchronized long put(String hash, byte[] buf, int off, int len) throws IOException {
+		if (acquire(hash)) return 0;
+		FileOutputStream output = new FileOutputStream(file(hash));
+		try {
+			output.write(buf, off, len);
+		} finally {
+			output.close();
+		}
+		refs.put(hash, 1);
+		sizes.put(hash, len);
+		bytes += len;
+		return len;
+	}
+
+	/**
+	 * Release one reference to every chunk of a manifest
+	 * @param hashes: chunk hashes
+	 * @return bytes freed
+	 */
+	public synchronized long release(String[] hashes) {
+		long freed = 0;
+		for (String hash : hashes) {
+			Integer ref = refs.get(hash);
+			if (ref == null) continue;
+			if (ref > 1) { refs.put(hash, ref - 1); continue; }
+			refs.remove(hash);
+			int size = sizes.remove(hash);
+			try {
+				Files.delete(Paths.get(file(hash)));
+			} catch (IOException e) {
+				e.printStackTrace(System.err);
+			}
+			bytes -= size;
+			freed += size;
+		}
+		return freed;
+	}
+
+	/**
+	 * Estimate bytes freed if a manifest is released
+	 * @param hashes: chunk hashes
+	 * @return bytes of chunks only referenced once
+	 */
+	public synchronized long exclusive(String[] hashes) {
+		long result = 0;
+		for (String hash : hashes) {
+			Integer ref = refs.get(hash);
+			if (ref != null && ref == 1) result += sizes.get(hash);
+		}
+		return result;
+	}
+
+	/**
+	 * Get total size of stored chunks
+	 * @return bytes
+	 */
+	public synchronized long bytes() { return bytes; }
+
+	/**
+	 * Get file path of a chunk
+	 * @param hash: chunk hash
+	 * @return chunk file path
+	 */
+	public String file(String hash) { return dir + hash; }
+
+	/**
+	 * Chunk a plain file into the store
+	 * @param src: plain file path
+	 * @return Manifest of the file, one reference held on every chunk
+	 * @throws IOException
+	 */
+	public Manifest dedup(String src) throws IOException {
+		InputStream input = new BufferedInputStream(new FileInputStream(src));
+		try {
+			return ContentChunker.chunk(input, new ContentChunker.Sink() {
+				public void chunk(String hash, byte[] buf, int off, int len) throws IOException {
+					put(hash, buf, off, len);
+				}
+			});
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Write the content of a manifest to a plain file
+	 * @param manifest: chunk list
+	 * @param dest: plain file path
+	 * @throws IOException
+	 */
+	public void materialize(Manifest manifest, String dest) throws IOException {
+		OutputStream output = new FileOutputStream(dest);
+		try {
+			byte[] buf = new byte[ContentChunker.MAX];
+			for (int i = 0; i < manifest.hashes.length; i++) {
+				InputStream input = new FileInputStream(file(manifest.hashes[i]));
+				try {
+					int n;
+					while ((n = input.read(buf)) > 0) output.write(buf, 0, n);
+				} finally {
+					input.close();
+				}
+			}
+		} finally {
+			output.close();
+		}
+	}
+
+	public synchronized String toString() {
+		return "--Chunks:" + refs.size() + "  --Chunk bytes:" + bytes;
+	}
+}
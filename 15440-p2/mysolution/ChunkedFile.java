@@ -0,0 +1,57 @@
+/**
+ * This is a class for reading a cached version stored as a manifest of chunks.
+ *
+ * Author: Yuqi Liu
+ */
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+public class ChunkedFile implements CachedFile {
+	private final ChunkStore store;     // chunk store
+	private final Manifest manifest;    // chunk list
+	private final long[] offsets;       // file offset of every chunk
+	private long pos = 0;               // file pointer
+	private RandomAccessFile crt;       // current chunk file
+	private int crt_index = -1;         // current chunk index
+
+	public ChunkedFile(ChunkStore store, Manifest manifest) {
+		this.store = store;
+		this.manifest = manifest;
+		this.offsets = manifest.offsets();
+	}
+
+	public int read(byte[] buf) throws IOException {
+		if (pos >= manifest.len) return -1;
+		int read = 0;
+		while (read < buf.length && pos < manifest.len) {
+			// locate chunk holding pos
+			int index = Arrays.binarySearch(offsets, pos);
+			if (index < 0) index = -index - 2;
+			if (index != crt_index) {
+				if (crt != null) crt.close();
+				crt = new RandomAccessFile(store.file(manifest.hashes[index]), "r");
+				crt_index = index;
+			}
+			crt.seek(pos - offsets[index]);
+			int n = crt.read(buf, read, (int) Math.min(buf.length - read, offsets[index + 1] - pos));
+			if (n <= 0) throw new IOException("Chunk " + manifest.hashes[index] + " truncated");
+			read += n;
+			pos += n;
+		}
+		return read;
+	}
+
+	public void seek(long pos) { this.pos = pos; }
+
+	public long getFilePointer() { return pos; }
+
+	public long length() { return manifest.len; }
+
+	public void close() throws IOException {
+		if (crt != null) crt.close();
+		crt = null;
+		crt_index = -1;
+	}
+}
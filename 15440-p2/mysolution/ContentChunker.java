@@ -0,0 +1,109 @@
+/**
+ * This is a class for content-defined chunking.
+ *
+ * A gear rolling hash runs over the data, a chunk ends where the low bits of the hash
+ * are zero (average 8KB), bounded by MIN and MAX chunk size.
+ * Boundaries depend on content only, so an edit only changes chunks around it
+ * and identical content in different files gives identical chunks.
+ *
+ * Server and proxy must use the same parameters.
+ *
+ * Author: Yuqi Liu
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class ContentChunker {
+	public static final int MIN = 2 * 1024;          // minimum chunk size
+	public static final int MAX = 64 * 1024;         // maximum chunk size
+	private static final long MASK = (1 << 13) - 1;  // average chunk size 8KB
+	private static final long[] GEAR = new long[256];  // random value per byte
+
+	static {
+		Random random = new Random(15440);
+		for (int i = 0; i < GEAR.length; i++) GEAR[i] = random.nextLong();
+	}
+
+	/*
+	 * Receiver of chunk data while chunking
+	 */
+	public interface Sink {
+		void chunk(String hash, byte[] buf, int off, int len) throws IOException;
+	}
+
+	/**
+	 * Cut a stream into chunks
+	 * @param in: data stream, not closed
+	 * @param sink: gets every chunk's data, may be null
+	 * @return Manifest of chunks (version not set)
+	 * @throws IOException
+	 */
+	public static Manifest chunk(InputStream in, Sink sink) throws IOException {
+		List<String> hashes = new ArrayList<String>();
+		List<Integer> lens = new ArrayList<Integer>();
+		byte[] buf = new byte[MAX];
+		int fill = 0;
+		boolean eof = false;
+		while (true) {
+			// top up the buffer
+			while (!eof && fill < MAX) {
+				int n = in.read(buf, fill, MAX - fill);
+				if (n < 0) eof = true;
+				else fill += n;
+			}
+			if (fill == 0) break;
+
+			int cut = boundary(buf, fill);
+			String hash = hash(buf, 0, cut);
+			if (sink != null) sink.chunk(hash, buf, 0, cut);
+			hashes.add(hash);
+			lens.add(cut);
+			System.arraycopy(buf, cut, buf, 0, fill - cut);
+			fill -= cut;
+		}
+
+		int[] sizes = new int[lens.size()];
+		for (int i = 0; i < sizes.length; i++) sizes[i] = lens.get(i);
+		return new Manifest(hashes.toArray(new String[hashes.size()]), sizes);
+	}
+
+	/**
+	 * Find end of first chunk in buffer
+	 * @param buf: data
+	 * @param fill: valid bytes, less than MAX only at end of stream
+	 * @return chunk size
+	 */
+	private static int boundary(byte[] buf, int fill) {
+		long h = 0;
+		for (int i = 0; i < fill; i++) {
+			h = (h << 1) + GEAR[buf[i] & 0xff];
+			if (i + 1 >= MIN && (h & MASK) == 0) return i + 1;
+		}
+		return fill;
+	}
+
+	/**
+	 * SHA-1 of data, in hex
+	 * @param buf: data
+	 * @param off: start
+	 * @param len: size
+	 * @return hex string
+	 */
+	public static String hash(byte[] buf, int off, int len) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(buf, off, len);
+			StringBuilder sb = new StringBuilder();
+			for (byte b : md.digest()) sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -12,6 +12,9 @@ public class FileData implements Serializable {
 	public boolean isExist = false;   // file exist
 	public boolean isError = false;   // file error occurs?
 	public String ErrorMsg;           // file error message
+	public String[] replicas;         // replicas holding this version
+	public long lease = 0;            // read lease duration in ms, 0 if no lease
+	public long crc = -1;             // CRC32C of inline data
 	
 	public FileData(long len, byte[] data) {
 		this.len = len;
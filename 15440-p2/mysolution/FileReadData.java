@@ -8,6 +8,9 @@ public class FileReadData implements Serializable {
 	long offset = 0;     // current file pointer
 	byte[] data = null;  // read data
 	int size = -1;       // data size
+	long version = -1;   // file version the data was read from
+	int load = 0;        // requests in progress on the server
+	long crc = -1;       // CRC32C of data
 	
 	public FileReadData(long offset, byte[] data, int size) {
 		this.offset = offset;
@@ -0,0 +1,138 @@
+/**
+ * This is a class for time-bounded read leases granted by server.
+ *
+ * A proxy holding a lease serves opens of its cached version without validation
+ * until the lease expires. A write-back or unlink of the path waits until all
+ * leases on it expire; while it waits no new lease is granted, so writers never starve.
+ * Staleness seen by proxies is bounded by lease duration.
+ *
+ * Lease duration is configured per path prefix, the longest matching prefix wins:
+ *   -Dlease.default=<ms>: duration for paths matching no prefix, 0 for no lease
+ *   -Dlease.map=<prefix>=<ms>,...: duration for paths under prefix
+ *
+ * Author: Yuqi Liu
+ */
+
+import java.util.*;
+
+public class LeaseTable {
+	private final long defaultMs;                                          // duration matching no prefix
+	private final TreeMap<String, Long> prefixes = new TreeMap<String, Long>();  // prefix - duration pair
+	private final Map<String, Long> expiry = new HashMap<String, Long>();         // path - latest lease expiry
+	private final Map<String, Integer> writers = new HashMap<String, Integer>();  // path - waiting writers
+	private long granted = 0;   // leases granted
+	private long refused = 0;   // leases refused for waiting writers
+	private long waited = 0;    // ms writers waited for leases
+	private static final int SWEEP = 1024;   // grants between sweeps of expired leases
+
+	public LeaseTable(long defaultMs, String map) {
+		this.defaultMs = defaultMs;
+		if (map == null) return;
+		for (String rule : map.split(",")) {
+			int split = rule.lastIndexOf('=');
+			if (split <= 0) continue;
+			String prefix = rule.substring(0, split).trim();
+			if (prefix.startsWith("/")) prefix = prefix.substring(1);
+			prefixes.put(prefix, Long.parseLong(rule.substring(split + 1).trim()));
+		}
+	}
+
+	/**
+	 * Lease table from system properties
+	 * @return lease table
+	 */
+	public static LeaseTable fromProperties() {
+		return new LeaseTable(Long.getLong("lease.default", 0), System.getProperty("lease.map"));
+	}
+
+	/**
+	 * Get lease duration of a path, longest matching prefix
+	 * @param path: file path (not mapped)
+	 * @return duration in ms, 0 for no lease
+	 */
+	public long duration(String path) {
+		String best = null;
+		for (String prefix : prefixes.keySet()) {
+			if (path.startsWith(prefix) && (best == null || prefix.length() > best.length())) best = prefix;
+		}
+		return best == null ? defaultMs : prefixes.get(best);
+	}
+
+	/**
+	 * Grant a read lease on a path
+	 * @param path: file path (not mapped)
+	 * @return lease duration in ms, 0 if not granted
+	 */
+	public synchronized long grant(String path) {
+		long ms = duration(path);
+		if (ms <= 0) return 0;
+		if (writers.containsKey(path)) { refused ++; return 0; }
+		long until = System.currentTimeMillis() + ms;
+		Long old = expiry.get(path);
+		if (old == null || old < until) expiry.put(path, until);
+		if (++ granted % SWEEP == 0) sweep();
+		return ms;
+	}
+
+	/**
+	 * Forget leases on a path whose open found no regular file, no lease was returned.
+	 * Leases granted while it was a file expired before the unlink that removed it committed.
+	 * @param path: file path (not mapped)
+	 */
+	public synchronized void revoke(String path) {
+		if (!writers.containsKey(path)) expiry.remove(path);
+	}
+
+	/**
+	 * Remove expired leases of paths no writer waits for
+	 */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Long>> it = expiry.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Long> entry = it.next();
+			if (entry.getValue() <= now && !writers.containsKey(entry.getKey())) it.remove();
+		}
+	}
+
+	/**
+	 * Register a writer and wait until all leases on the path expire
+	 * @param path: file path (not mapped)
+	 */
+	public void acquire(String path) {
+		long until;
+		synchronized (this) {
+			Integer count = writers.get(path);
+			writers.put(path, count == null ? 1 : count + 1);
+			Long old = expiry.get(path);
+			until = old == null ? 0 : old;
+		}
+		long wait = until - System.currentTimeMillis();
+		if (wait <= 0) return;
+		try {
+			Thread.sleep(wait);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) { waited += wait; }
+	}
+
+	/**
+	 * Writer done, leases can be granted again when no writer waits
+	 * @param path: file path (not mapped)
+	 */
+	public synchronized void release(String path) {
+		Integer count = writers.get(path);
+		if (count == null || count <= 1) {
+			writers.remove(path);
+			Long old = expiry.get(path);
+			if (old != null && old <= System.currentTimeMillis()) expiry.remove(path);
+		} else {
+			writers.put(path, count - 1);
+		}
+	}
+
+	public synchronized String toString() {
+		return "LEASES: " + expiry.size() + " GRANTED: " + granted + " REFUSED: " + refused + " WAITED(ms): " + waited;
+	}
+}
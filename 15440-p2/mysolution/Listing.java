@@ -0,0 +1,83 @@
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This is a class for transfer a directory listing
+ * Author: Yuqi Liu
+ */
+public class Listing implements Serializable {
+	private static final long serialVersionUID = 1L;
+	public long version = -1;     // directory last modified
+	public String[] names;        // child names
+	public long[] lens;           // child sizes
+	public long[] versions;       // child versions
+	public boolean[] dirs;        // child is directory?
+	private transient volatile Map<String, Integer> index;   // child name - index, built on first lookup
+
+	public Listing(int size) {
+		this.names = new String[size];
+		this.lens = new long[size];
+		this.versions = new long[size];
+		this.dirs = new boolean[size];
+	}
+
+	/**
+	 * Get index of a child
+	 * @param name: child name
+	 * @return index, -1 if not listed
+	 */
+	public int indexOf(String name) {
+		Map<String, Integer> map = index;
+		if (map == null) {
+			map = new HashMap<String, Integer>(names.length * 2);
+			for (int i = 0; i < names.length; i++) map.put(names[i], i);
+			index = map;
+		}
+		Integer i = map.get(name);
+		return i == null ? -1 : i;
+	}
+
+	/**
+	 * Merge listings of one directory from several servers
+	 * @param other: listing from another server, may be null
+	 * @return merged listing
+	 */
+	public Listing merge(Listing other) {
+		if (other == null) return this;
+		int size = names.length;
+		Listing result = new Listing(size + other.names.length);
+		System.arraycopy(names, 0, result.names, 0, size);
+		System.arraycopy(lens, 0, result.lens, 0, size);
+		System.arraycopy(versions, 0, result.versions, 0, size);
+		System.arraycopy(dirs, 0, result.dirs, 0, size);
+		for (int i = 0; i < other.names.length; i++) {
+			int index = indexOf(other.names[i]);
+			if (index >= 0) {
+				// same name on two servers (directory, or a file moving while rebalancing), newest wins
+				if (other.versions[i] > result.versions[index]) {
+					result.lens[index] = other.lens[i];
+					result.versions[index] = other.versions[i];
+					result.dirs[index] = other.dirs[i];
+				}
+				continue;
+			}
+			result.names[size] = other.names[i];
+			result.lens[size] = other.lens[i];
+			result.versions[size] = other.versions[i];
+			result.dirs[size] = other.dirs[i];
+			size ++;
+		}
+		result.version = Math.max(version, other.version);
+		if (size < result.names.length) {
+			Listing trimmed = new Listing(size);
+			System.arraycopy(result.names, 0, trimmed.names, 0, size);
+			System.arraycopy(result.lens, 0, trimmed.lens, 0, size);
+			System.arraycopy(result.versions, 0, trimmed.versions, 0, size);
+			System.arraycopy(result.dirs, 0, trimmed.dirs, 0, size);
+			trimmed.version = result.version;
+			result = trimmed;
+		}
+		return result;
+	}
+}
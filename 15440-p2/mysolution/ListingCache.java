@@ -0,0 +1,148 @@
+/**
+ * This is a class for caching directory listings in proxy.
+ * A fresh listing of a directory answers existence and version checks
+ * of its children without asking server for each child.
+ *
+ * A listing is fresh for listing.ttl ms after it was requested, 0 disables the cache.
+ * It is dropped earlier when proxy changes a child, or learns from an open
+ * that a child's version differs from the listed one.
+ *
+ * Author: Yuqi Liu
+ */
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ListingCache {
+	public static final long TTL = Long.getLong("listing.ttl", 0);   // listing freshness in ms, 0 disables
+
+	private final Map<String, Entry> map = new ConcurrentHashMap<String, Entry>();  // directory - listing pair
+	private final AtomicLong answered = new AtomicLong();   // opens answered by listings
+	private final AtomicLong fetched = new AtomicLong();    // listings fetched
+	private final AtomicLong dropped = new AtomicLong();    // listings invalidated
+
+	private static class Entry {
+		final Listing listing;   // merged listing of all servers
+		final long expiry;       // fresh until
+
+		Entry(Listing listing, long expiry) {
+			this.listing = listing;
+			this.expiry = expiry;
+		}
+	}
+
+	/**
+	 * If listing cache is enabled
+	 * @return true if enabled
+	 */
+	public boolean enabled() { return TTL > 0; }
+
+	/**
+	 * Store a listing
+	 * @param dir: directory path
+	 * @param listing: listing of directory
+	 * @param asked: time the listing was requested, freshness counts from it
+	 */
+	public void put(String dir, Listing listing, long asked) {
+		if (listing == null) return;
+		map.put(normalize(dir), new Entry(listing, asked + TTL));
+		fetched.incrementAndGet();
+	}
+
+	/**
+	 * Check if a directory has a fresh listing
+	 * @param dir: directory path
+	 * @return true if fresh
+	 */
+	public boolean isFresh(String dir) { return fresh(normalize(dir)) != null; }
+
+	/**
+	 * Answer a read or write open from the parent listing
+	 * @param path: file path
+	 * @param crt_version: version in cache, -1 if not cached
+	 * @return FileData as server would return it, null if listing cannot answer
+	 */
+	public FileData answer(String path, long crt_version) {
+		path = normalize(path);
+		Listing listing = fresh(parent(path));
+		if (listing == null) return null;
+		int index = listing.indexOf(name(path));
+		FileData file = new FileData(0, new byte[0]);
+		if (index < 0) {
+			// no such file
+		} else if (listing.dirs[index]) {
+			file.isExist = true;
+			file.isDir = true;
+		} else if (crt_version != -1 && listing.versions[index] == crt_version) {
+			// cached version is the latest
+			file.isExist = true;
+		} else {
+			return null;
+		}
+		answered.incrementAndGet();
+		return file;
+	}
+
+	/**
+	 * Drop parent listing if it disagrees with a version learned from server
+	 * @param path: file path
+	 * @param version: latest version of file, -1 if file does not exist
+	 */
+	public void seen(String path, long version) {
+		path = normalize(path);
+		Listing listing = fresh(parent(path));
+		if (listing == null) return;
+		int index = listing.indexOf(name(path));
+		long listed = index < 0 ? -1 : listing.versions[index];
+		if (listed != version) invalidate(path);
+	}
+
+	/**
+	 * Drop listing of parent directory after a child changed
+	 * @param path: changed file path
+	 */
+	public void invalidate(String path) {
+		if (map.remove(parent(normalize(path))) != null) dropped.incrementAndGet();
+	}
+
+	/**
+	 * Get a fresh listing, stale one is removed
+	 * @param dir: normalized directory path
+	 * @return listing, null if none or stale
+	 */
+	private Listing fresh(String dir) {
+		Entry entry = map.get(dir);
+		if (entry == null) return null;
+		if (entry.expiry <= System.currentTimeMillis()) {
+			map.remove(dir, entry);
+			return null;
+		}
+		return entry.listing;
+	}
+
+	/**
+	 * Normalize a path: no leading "./" and no trailing "/", root is ""
+	 * @param path
+	 * @return normalized path
+	 */
+	private static String normalize(String path) {
+		while (path.startsWith("./")) path = path.substring(2);
+		while (path.endsWith("/")) path = path.substring(0, path.length() - 1);
+		return path.equals(".") ? "" : path;
+	}
+
+	private static String parent(String path) {
+		int index = path.lastIndexOf('/');
+		return index < 0 ? "" : path.substring(0, index);
+	}
+
+	private static String name(String path) {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+	public String toString() {
+		return "LISTING[dirs:" + map.size() + " fetched:" + fetched.get()
+				+ " answered:" + answered.get() + " dropped:" + dropped.get() + "]";
+	}
+}
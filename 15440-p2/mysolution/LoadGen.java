@@ -0,0 +1,403 @@
+/**
+ * This is a load generator and trace replayer for proxy and server.
+ *
+ * It starts a proxy in the same JVM (Proxy.init) and drives FileHandler objects
+ * directly through FileHandling, one per simulated client, the way RPCreceiver would.
+ * Servers must already be running.
+ *
+ * Two kinds of scenarios:
+ *   replay: -Dload.trace=<file> replays a recorded trace, keeping its timing
+ *           (scaled by -Dload.speed). Traces are recorded by a proxy started with
+ *           -Dproxy.trace=<file>, see Recorder.
+ *   zipf:   synthetic workload, every client opens files picked from a Zipf distribution,
+ *           reads them whole or overwrites them. Files are created in a setup scenario first.
+ * For each scenario it reports throughput, latency percentiles of each call,
+ * cache hit ratio and bytes moved between proxy and servers.
+ *
+ * Trace format, one call per line: <ms> <client> <op> <args>
+ *   open <path> <OpenOption> <handle>, read <handle> <len>, write <handle> <len>,
+ *   lseek <handle> <pos> <LseekOption>, close <handle>, unlink <path>, done
+ * Spaces in paths are written as %20.
+ *
+ * Usage: java LoadGen <server ip> <port> <cache dir> <cache size> [more servers...]
+ * Properties (synthetic): load.clients, load.ops (per client), load.files, load.fileSize,
+ *   load.zipf (exponent), load.writeRatio, load.buf, load.prefix, load.verbose
+ *
+ * Author: Yuqi Liu
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LoadGen {
+	private static final int CLIENTS = Integer.getInteger("load.clients", 16);           // simulated clients
+	private static final int OPS = Integer.getInteger("load.ops", 1000);                 // file accesses per client
+	private static final int FILES = Integer.getInteger("load.files", 100);              // distinct files
+	private static final int FILE_SIZE = Integer.getInteger("load.fileSize", 64 * 1024); // bytes per file
+	private static final double ZIPF = Double.parseDouble(System.getProperty("load.zipf", "0.99"));
+	private static final double WRITE_RATIO = Double.parseDouble(System.getProperty("load.writeRatio", "0.1"));
+	private static final int BUF = Integer.getInteger("load.buf", 8192);                 // bytes per read/write call
+	private static final String PREFIX = System.getProperty("load.prefix", "loadgen-");  // synthetic file prefix
+	private static final double SPEED = Double.parseDouble(System.getProperty("load.speed", "1.0"));
+	private static final String[] CALLS = { "open", "read", "write", "lseek", "close", "unlink" };
+
+	/**
+	 * Run a synthetic or replay scenario and print its report
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: java LoadGen <server ip> <port> <cache dir> <cache size> [more servers...]");
+			return;
+		}
+		PrintStream out = System.out;
+		Proxy.init(args);
+		// proxy logs every close to stderr, keep it quiet unless asked
+		if (!Boolean.getBoolean("load.verbose")) System.setErr(new PrintStream(new OutputStream() {
+			public void write(int b) {}
+		}));
+
+		String trace = System.getProperty("load.trace");
+		if (trace != null) {
+			out.print(replay(trace).report("replay " + trace));
+		} else {
+			out.print(setup().report("setup"));
+			out.print(zipf().report("zipf s=" + ZIPF));
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Create synthetic files
+	 * @return scenario statistics
+	 */
+	private static Stats setup() throws InterruptedException {
+		final Stats stats = new Stats();
+		final byte[] data = new byte[FILE_SIZE];
+		new Random(15440).nextBytes(data);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int c = 0; c < CLIENTS; c++) {
+			final int client = c;
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					FileHandling handler = Proxy.newClient();
+					for (int i = client; i < FILES; i += CLIENTS) {
+						long start = System.nanoTime();
+						int fd = handler.open(PREFIX + i, FileHandling.OpenOption.CREATE);
+						stats.record("open", start, fd);
+						if (fd < 0) continue;
+						for (int off = 0; off < data.length; off += BUF) {
+							start = System.nanoTime();
+							long n = handler.write(fd, Arrays.copyOfRange(data, off, Math.min(data.length, off + BUF)));
+							stats.record("write", start, n);
+							if (n > 0) stats.bytes.addAndGet(n);
+						}
+						start = System.nanoTime();
+						stats.record("close", start, handler.close(fd));
+					}
+					handler.clientdone();
+					return null;
+				}
+			});
+		}
+		stats.run(tasks);
+		return stats;
+	}
+
+	/**
+	 * Synthetic Zipf workload, reads whole files or overwrites the first buffer
+	 * @return scenario statistics
+	 */
+	private static Stats zipf() throws InterruptedException {
+		final Stats stats = new Stats();
+		final double[] cdf = new double[FILES];
+		double sum = 0;
+		for (int i = 0; i < FILES; i++) {
+			sum += 1 / Math.pow(i + 1, ZIPF);
+			cdf[i] = sum;
+		}
+		for (int i = 0; i < FILES; i++) cdf[i] /= sum;
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int c = 0; c < CLIENTS; c++) {
+			final Random random = new Random(c);
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					FileHandling handler = Proxy.newClient();
+					byte[] buf = new byte[BUF];
+					for (int op = 0; op < OPS; op++) {
+						int rank = Arrays.binarySearch(cdf, random.nextDouble());
+						if (rank < 0) rank = Math.min(FILES - 1, -rank - 1);
+						String path = PREFIX + rank;
+						boolean write = random.nextDouble() < WRITE_RATIO;
+
+						long start = System.nanoTime();
+						int fd = handler.open(path, write ? FileHandling.OpenOption.WRITE : FileHandling.OpenOption.READ);
+						stats.record("open", start, fd);
+						if (fd < 0) continue;
+						if (write) {
+							random.nextBytes(buf);
+							start = System.nanoTime();
+							long n = handler.write(fd, buf);
+							stats.record("write", start, n);
+							if (n > 0) stats.bytes.addAndGet(n);
+						} else {
+							long n;
+							do {
+								start = System.nanoTime();
+								n = handler.read(fd, buf);
+								stats.record("read", start, n);
+								if (n > 0) stats.bytes.addAndGet(n);
+							} while (n > 0);
+						}
+						start = System.nanoTime();
+						stats.record("close", start, handler.close(fd));
+					}
+					handler.clientdone();
+					return null;
+				}
+			});
+		}
+		stats.run(tasks);
+		return stats;
+	}
+
+	/**
+	 * Replay a recorded trace, every client on its own thread keeping recorded timing
+	 * @param file: trace file
+	 * @return scenario statistics
+	 */
+	private static Stats replay(String file) throws IOException, InterruptedException {
+		final Map<String, List<String[]>> clients = new LinkedHashMap<String, List<String[]>>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) continue;
+				String[] event = line.split(" ");
+				if (event.length < 3) continue;
+				List<String[]> events = clients.get(event[1]);
+				if (events == null) clients.put(event[1], events = new ArrayList<String[]>());
+				events.add(event);
+			}
+		} finally {
+			reader.close();
+		}
+
+		final Stats stats = new Stats();
+		final long begin = System.nanoTime();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final List<String[]> events : clients.values()) {
+			tasks.add(new Callable<Void>() {
+				public Void call() throws InterruptedException {
+					FileHandling handler = Proxy.newClient();
+					Map<String, Integer> fds = new HashMap<String, Integer>();   // trace handle - fd pair
+					for (String[] event : events) {
+						long wait = (long) (Long.parseLong(event[0]) / SPEED) - (System.nanoTime() - begin) / 1000000;
+						if (wait > 0) Thread.sleep(wait);
+						replayEvent(handler, fds, event, stats);
+					}
+					handler.clientdone();
+					return null;
+				}
+			});
+		}
+		stats.run(tasks);
+		return stats;
+	}
+
+	/**
+	 * Replay one trace event
+	 * @param handler: client handler
+	 * @param fds: trace handle - fd pair of this client
+	 * @param event: ms, client, op, args
+	 * @param stats: scenario statistics
+	 */
+	private static void replayEvent(FileHandling handler, Map<String, Integer> fds, String[] event, Stats stats) {
+		String op = event[2];
+		long start = System.nanoTime();
+		if (op.equals("open")) {
+			int fd = handler.open(event[3].replace("%20", " "), FileHandling.OpenOption.valueOf(event[4]));
+			stats.record(op, start, fd);
+			if (fd >= 0) fds.put(event[5], fd);
+		} else if (op.equals("unlink")) {
+			stats.record(op, start, handler.unlink(event[3].replace("%20", " ")));
+		} else if (op.equals("done")) {
+			handler.clientdone();
+		} else {
+			Integer fd = fds.get(event[3]);
+			if (fd == null) return;   // open of this handle failed
+			if (op.equals("read")) {
+				long n = handler.read(fd, new byte[Integer.parseInt(event[4])]);
+				stats.record(op, start, n);
+				if (n > 0) stats.bytes.addAndGet(n);
+			} else if (op.equals("write")) {
+				long n = handler.write(fd, new byte[Integer.parseInt(event[4])]);
+				stats.record(op, start, n);
+				if (n > 0) stats.bytes.addAndGet(n);
+			} else if (op.equals("lseek")) {
+				stats.record(op, start, handler.lseek(fd, Long.parseLong(event[4]), FileHandling.LseekOption.valueOf(event[5])));
+			} else if (op.equals("close")) {
+				stats.record(op, start, handler.close(fd));
+				fds.remove(event[3]);
+			}
+		}
+	}
+
+
+	/*
+	 * Stats class, used to record results of one scenario
+	 */
+	static class Stats {
+		private final Map<String, ServerMetrics.Histogram> latency = new HashMap<String, ServerMetrics.Histogram>();
+		private final AtomicLong errors = new AtomicLong();   // calls returning errno
+		private final Map<String, Long> errnos = new TreeMap<String, Long>();   // call errno - count pair
+		public final AtomicLong bytes = new AtomicLong();     // bytes read and written by clients
+		private long[] before;                                // proxy counters at start
+		private long[] after;                                 // proxy counters at end
+		private long elapsed;                                 // scenario time in ns
+
+		public Stats() {
+			for (String call : CALLS) latency.put(call, new ServerMetrics.Histogram());
+		}
+
+		/**
+		 * Record one call
+		 * @param call: call name
+		 * @param start: call start in System.nanoTime()
+		 * @param result: return value, negative for errno
+		 */
+		public void record(String call, long start, long result) {
+			latency.get(call).add(System.nanoTime() - start);
+			if (result < 0) {
+				errors.incrementAndGet();
+				synchronized (errnos) {
+					String key = call + " " + result;
+					errnos.put(key, errnos.containsKey(key) ? errnos.get(key) + 1 : 1);
+				}
+			}
+		}
+
+		/**
+		 * Run client tasks concurrently and wait for all of them
+		 * @param tasks: one task per client
+		 */
+		public void run(List<Callable<Void>> tasks) throws InterruptedException {
+			ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, tasks.size()));
+			before = Proxy.counters();
+			long start = System.nanoTime();
+			try {
+				for (Future<Void> result : executor.invokeAll(tasks)) {
+					try {
+						result.get();
+					} catch (ExecutionException e) {
+						e.getCause().printStackTrace(System.out);
+					}
+				}
+			} finally {
+				executor.shutdown();
+			}
+			elapsed = System.nanoTime() - start;
+			after = Proxy.counters();
+		}
+
+		/**
+		 * Readable report of a scenario
+		 * @param name: scenario name
+		 * @return report text
+		 */
+		public String report(String name) {
+			long calls = 0;
+			for (ServerMetrics.Histogram histogram : latency.values()) calls += histogram.count();
+			double seconds = Math.max(1, elapsed) / 1e9;
+			long hits = after[0] - before[0];
+			long misses = after[1] - before[1];
+			StringBuilder sb = new StringBuilder();
+			sb.append("--Scenario " + name + " TIME(s): " + String.format("%.3f", seconds)
+					+ " CALLS: " + calls + " ERRORS: " + errors.get()
+					+ " THROUGHPUT(calls/s): " + String.format("%.1f", calls / seconds) + "\n");
+			if (!errnos.isEmpty()) sb.append("--Errors (call errno - count): " + errnos.toString() + "\n");
+			for (String call : CALLS) {
+				ServerMetrics.Histogram histogram = latency.get(call);
+				if (histogram.count() == 0) continue;
+				sb.append("[ " + call + " : COUNT: " + histogram.count() + " LATENCY(us) " + histogram.toString() + "] \n");
+			}
+			sb.append("--Cache HITS: " + hits + " MISSES: " + misses + " HIT RATIO: "
+					+ String.format("%.3f", hits + misses == 0 ? 0 : (double) hits / (hits + misses)) + "\n");
+			sb.append("--Bytes CLIENT: " + bytes.get() + " FETCHED: " + (after[2] - before[2])
+					+ " WRITTEN BACK: " + (after[3] - before[3]) + "\n");
+			return sb.toString();
+		}
+	}
+
+
+	/*
+	 * Recorder class, a FileHandling that writes every call of a client to a trace
+	 */
+	static class Recorder implements FileHandling {
+		private static final AtomicLong ids = new AtomicLong();   // client id generation
+		private static final long start = System.currentTimeMillis();
+		private static PrintWriter writer;                        // shared trace writer
+
+		private final FileHandling handler;   // recorded handler
+		private final long client = ids.incrementAndGet();
+
+		public Recorder(FileHandling handler) {
+			this.handler = handler;
+		}
+
+		/**
+		 * Open trace file for recording
+		 * @param file: trace file
+		 * @throws IOException
+		 */
+		public static synchronized void open(String file) throws IOException {
+			writer = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		}
+
+		private void log(String event) {
+			synchronized (Recorder.class) {
+				writer.println((System.currentTimeMillis() - start) + " " + client + " " + event);
+				writer.flush();
+			}
+		}
+
+		public int open(String path, OpenOption o) {
+			int fd = handler.open(path, o);
+			if (fd >= 0) log("open " + path.replace(" ", "%20") + " " + o + " " + fd);
+			return fd;
+		}
+
+		public int close(int fd) {
+			log("close " + fd);
+			return handler.close(fd);
+		}
+
+		public long write(int fd, byte[] buf) {
+			log("write " + fd + " " + buf.length);
+			return handler.write(fd, buf);
+		}
+
+		public long read(int fd, byte[] buf) {
+			log("read " + fd + " " + buf.length);
+			return handler.read(fd, buf);
+		}
+
+		public long lseek(int fd, long pos, LseekOption o) {
+			log("lseek " + fd + " " + pos + " " + o);
+			return handler.lseek(fd, pos, o);
+		}
+
+		public int unlink(String path) {
+			log("unlink " + path.replace(" ", "%20"));
+			return handler.unlink(path);
+		}
+
+		public void clientdone() {
+			log("done");
+			handler.clientdone();
+		}
+	}
+}
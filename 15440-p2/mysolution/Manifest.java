@@ -0,0 +1,82 @@
+/**
+ * This is a class for the chunk list of one file version.
+ *
+ * Chunks are cut by content (see ContentChunker) and named by SHA-1.
+ * Sent from server so proxy only fetches chunks it does not hold,
+ * and stored in proxy cache directory in place of the cached file.
+ *
+ * Author: Yuqi Liu
+ */
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+public class Manifest implements Serializable {
+	private static final long serialVersionUID = 1L;
+	public long version = -1;   // file version
+	public long len = 0;        // file size
+	public String[] hashes;     // chunk hashes in file order
+	public int[] lens;          // chunk sizes
+
+	public Manifest(String[] hashes, int[] lens) {
+		this.hashes = hashes;
+		this.lens = lens;
+		for (int size : lens) len += size;
+	}
+
+	/**
+	 * Get file offsets of all chunks, one more for file end
+	 * @return offsets array
+	 */
+	public long[] offsets() {
+		long[] result = new long[lens.length + 1];
+		for (int i = 0; i < lens.length; i++) result[i + 1] = result[i] + lens[i];
+		return result;
+	}
+
+	/**
+	 * Write manifest to a file, one "hash size" per line
+	 * @param file: manifest file path
+	 * @throws IOException
+	 */
+	public void write(String file) throws IOException {
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		try {
+			writer.println(version);
+			for (int i = 0; i < hashes.length; i++) writer.println(hashes[i] + " " + lens[i]);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Load a manifest file
+	 * @param file: manifest file path
+	 * @return Manifest
+	 * @throws IOException
+	 */
+	public static Manifest load(String file) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			long version = Long.parseLong(reader.readLine().trim());
+			List<String> hashes = new ArrayList<String>();
+			List<Integer> lens = new ArrayList<Integer>();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split(" ");
+				hashes.add(parts[0]);
+				lens.add(Integer.parseInt(parts[1]));
+			}
+			int[] sizes = new int[lens.size()];
+			for (int i = 0; i < sizes.length; i++) sizes[i] = lens.get(i);
+			Manifest manifest = new Manifest(hashes.toArray(new String[hashes.size()]), sizes);
+			manifest.version = version;
+			return manifest;
+		} catch (NullPointerException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Bad manifest " + file);
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,28 @@
+/**
+ * This is a class for reading a cached version held in the memory tier.
+ *
+ * Author: Yuqi Liu
+ */
+
+public class MemoryFile implements CachedFile {
+	private final MemoryTier.Block block;   // pages of the version
+	private long pos = 0;                   // file pointer
+
+	public MemoryFile(MemoryTier.Block block) {
+		this.block = block;
+	}
+
+	public int read(byte[] buf) {
+		int n = block.read(pos, buf, 0, buf.length);
+		if (n > 0) pos += n;
+		return n;
+	}
+
+	public void seek(long pos) { this.pos = pos; }
+
+	public long getFilePointer() { return pos; }
+
+	public long length() { return block.len; }
+
+	public void close() {}
+}
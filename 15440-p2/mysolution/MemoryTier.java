@@ -0,0 +1,182 @@
+/**
+ * This is a class for the off-heap memory tier of proxy cache.
+ *
+ * One direct ByteBuffer is cut into PAGE sized slabs, a cached version takes
+ * as many pages as it needs and gives them back when freed.
+ * Data never lives in heap byte arrays, so hot small files add no GC pressure.
+ *
+ * Capacity and largest cached version can be configured with
+ * -Dcache.memory and -Dcache.memoryMax.
+ *
+ * Author: Yuqi Liu
+ */
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+public class MemoryTier {
+	public static final int PAGE = 4096;    // slab page size
+	public final int maxObject;             // largest version kept in memory
+	private final ByteBuffer slab;          // off-heap memory
+	private final int[] free;               // stack of free page indices
+	private int top;                        // free pages on stack
+
+	public MemoryTier(long capacity, int maxObject) {
+		int pages = (int) Math.min(capacity / PAGE, Integer.MAX_VALUE / PAGE);
+		this.slab = ByteBuffer.allocateDirect(pages * PAGE);
+		this.free = new int[pages];
+		this.maxObject = maxObject;
+		for (int i = 0; i < pages; i++) free[i] = pages - 1 - i;
+		this.top = pages;
+	}
+
+	/**
+	 * Check if len bytes fit in free pages
+	 * @param len: bytes
+	 * @return true if fit
+	 */
+	public synchronized boolean fits(int len) { return pagesOf(len) <= top; }
+
+	/**
+	 * Load files one after another into a new block
+	 * @param files: plain file or chunk files in order
+	 * @param len: total bytes
+	 * @return Block, null if not enough free pages
+	 * @throws IOException
+	 */
+	public Block load(List<String> files, int len) throws IOException {
+		Block block = allocate(len);
+		if (block == null) return null;
+		int pos = 0;
+		try {
+			for (String file : files) {
+				FileInputStream input = new FileInputStream(file);
+				FileChannel channel = input.getChannel();
+				try {
+					int n;
+					do {
+						ByteBuffer page = block.page(pos);
+						if (page == null) break;
+						n = channel.read(page);
+						if (n > 0) pos += n;
+					} while (n > 0);
+				} finally {
+					input.close();
+				}
+			}
+		} catch (IOException e) {
+			free(block);
+			throw e;
+		}
+		if (pos != len) {
+			free(block);
+			throw new IOException("Loaded " + pos + " of " + len + " bytes");
+		}
+		return block;
+	}
+
+	/**
+	 * Write a block to a plain file, used for demotion and write copies
+	 * @param block: memory block
+	 * @param dest: file path
+	 * @throws IOException
+	 */
+	public void store(Block block, String dest) throws IOException {
+		FileOutputStream output = new FileOutputStream(dest);
+		FileChannel channel = output.getChannel();
+		try {
+			int pos = 0;
+			while (pos < block.len) {
+				ByteBuffer page = block.page(pos);
+				page.limit(page.position() + Math.min(page.remaining(), block.len - pos));
+				pos += channel.write(page);
+			}
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Give pages of a block back
+	 * @param block: memory block
+	 */
+	public synchronized void free(Block block) {
+		if (block.pages == null) return;
+		for (int page : block.pages) free[top++] = page;
+		block.pages = null;
+	}
+
+	/**
+	 * Get bytes used by blocks
+	 * @return used bytes
+	 */
+	public synchronized long used() { return (long) (free.length - top) * PAGE; }
+
+	private synchronized Block allocate(int len) {
+		int n = pagesOf(len);
+		if (n > top) return null;
+		int[] pages = new int[n];
+		for (int i = 0; i < n; i++) pages[i] = free[--top];
+		return new Block(pages, len);
+	}
+
+	private static int pagesOf(int len) { return (len + PAGE - 1) / PAGE; }
+
+	public synchronized String toString() {
+		return "--Memory capacity:" + (long) free.length * PAGE + "  --Memory length:" + used();
+	}
+
+
+	/*
+	 * Block class, pages holding one cached version
+	 */
+	class Block {
+		private int[] pages;    // page indices in order, null after freed
+		public final int len;   // data length
+
+		Block(int[] pages, int len) {
+			this.pages = pages;
+			this.len = len;
+		}
+
+		/**
+		 * Get a buffer over the page holding pos, from pos to page end
+		 * @param pos: data offset
+		 * @return buffer view, null if past the last page
+		 */
+		ByteBuffer page(int pos) {
+			int index = pos / PAGE;
+			if (pages == null || index >= pages.length) return null;
+			ByteBuffer view = slab.duplicate();
+			int start = pages[index] * PAGE;
+			view.limit(start + PAGE);
+			view.position(start + pos % PAGE);
+			return view;
+		}
+
+		/**
+		 * Copy data from pos into buf
+		 * @param pos: data offset
+		 * @param buf: destination
+		 * @param off: destination offset
+		 * @param n: maximum bytes
+		 * @return bytes copied, -1 at end of data
+		 */
+		int read(long pos, byte[] buf, int off, int n) {
+			if (pos >= len) return -1;
+			int copied = 0;
+			n = (int) Math.min(n, len - pos);
+			while (copied < n) {
+				ByteBuffer page = page((int) pos + copied);
+				int size = Math.min(page.remaining(), n - copied);
+				page.get(buf, off + copied, size);
+				copied += size;
+			}
+			return copied;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/**
+ * This is a class for coalescing concurrent opens to one server into batches.
+ *
+ * An open arriving while no call is outstanding is sent at once. Opens arriving
+ * while one is outstanding wait for it, then the first of them sends all of them
+ * with one openBatch call. The leader may also wait an extra window
+ * (-Dopen.batchWindow, microseconds, default 0) collecting more opens,
+ * a batch is sent early when it reaches -Dopen.batchMax opens.
+ * -Dopen.batch=false disables batching.
+ *
+ * Author: Yuqi Liu
+ */
+
+import java.rmi.RemoteException;
+import java.util.*;
+
+public class OpenBatcher {
+	public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("open.batch", "true"));
+	public static final long WINDOW = Long.getLong("open.batchWindow", 0);     // extra collecting window in us
+	private static final int MAX = Integer.getInteger("open.batchMax", 256);   // maximum opens per batch
+
+	private final ServerConn conn;                            // server connection
+	private List<Request> pending = new ArrayList<Request>();  // opens waiting for a batch
+	private boolean sending = false;                          // a leader is collecting or sending a batch
+	private long batches = 0;                                 // batches sent
+	private long opens = 0;                                   // opens sent in batches
+
+	public OpenBatcher(ServerConn conn) {
+		this.conn = conn;
+	}
+
+	/**
+	 * Open a file, batched with concurrent opens
+	 * @param path: mapped file path
+	 * @param option: 1-CREATE, 2-CREATE NEW 3-READ 4- WRITE
+	 * @param version: current version in cache
+	 * @param inline: maximum data bytes returned with a new version
+	 * @return FileData from server
+	 * @throws RemoteException
+	 */
+	public FileData open(String path, int option, long version, int inline) throws RemoteException {
+		Request request = new Request(path, option, version, inline);
+		synchronized (this) {
+			pending.add(request);
+			if (!sending) {
+				sending = true;
+				request.lead = true;
+			} else if (pending.size() >= MAX) notifyAll();
+		}
+
+		synchronized (request) {
+			while (!request.done && !request.lead) {
+				try {
+					request.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RemoteException("Interrupted waiting for batch");
+				}
+			}
+		}
+		if (request.lead) {
+			try {
+				send(collect());
+			} finally {
+				handOff();
+			}
+		}
+
+		synchronized (request) {
+			while (!request.done) {
+				try {
+					request.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RemoteException("Interrupted waiting for batch");
+				}
+			}
+		}
+		if (request.error != null) throw request.error;
+		return request.result;
+	}
+
+	/**
+	 * Wait for the window to end or the batch to fill, then take pending opens
+	 * @return batch to send
+	 */
+	private synchronized List<Request> collect() {
+		long deadline = System.nanoTime() + WINDOW * 1000;
+		long remaining;
+		while (pending.size() < MAX && (remaining = deadline - System.nanoTime()) > 0) {
+			try {
+				wait(remaining / 1000000, (int) (remaining % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		List<Request> batch = pending;
+		pending = new ArrayList<Request>();
+		batches ++;
+		opens += batch.size();
+		return batch;
+	}
+
+	/**
+	 * Make the first open that arrived during the call the next leader
+	 */
+	private void handOff() {
+		Request next = null;
+		synchronized (this) {
+			if (pending.isEmpty()) sending = false;
+			else next = pending.get(0);
+		}
+		if (next != null) {
+			synchronized (next) {
+				next.lead = true;
+				next.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Send a batch and hand results to waiting opens
+	 * @param batch: opens to send
+	 */
+	private void send(List<Request> batch) {
+		int n = batch.size();
+		String[] paths = new String[n];
+		int[] options = new int[n];
+		long[] versions = new long[n];
+		int inline = 0;
+		for (int i = 0; i < n; i++) {
+			Request request = batch.get(i);
+			paths[i] = request.path;
+			options[i] = request.option;
+			versions[i] = request.version;
+			inline = Math.max(inline, request.inline);
+		}
+
+		FileData[] result = null;
+		RemoteException error = null;
+		conn.inflight.incrementAndGet();
+		long start = System.nanoTime();
+		try {
+			if (n == 1) result = new FileData[] { conn.server.open(paths[0], options[0], versions[0], inline) };
+			else result = conn.server.openBatch(paths, options, versions, inline);
+			if (result == null || result.length != n) throw new RemoteException("Batch of " + n + " opens answered " + (result == null ? 0 : result.length));
+			long bytes = 0;
+			for (FileData data : result) {
+				if (data != null && data.data != null) bytes += data.data.length;
+			}
+			if (bytes > 0) conn.sizer.sample(bytes, System.nanoTime() - start);
+			conn.bytes_down.addAndGet(bytes);
+		} catch (RemoteException e) {
+			error = e;
+		} catch (Exception e) {
+			// every open of the batch must be answered, or its caller waits forever
+			error = new RemoteException("Batch open failed", e);
+		} finally {
+			conn.inflight.decrementAndGet();
+		}
+
+		for (int i = 0; i < n; i++) {
+			Request request = batch.get(i);
+			synchronized (request) {
+				if (error != null) request.error = error;
+				else request.result = result[i];
+				request.done = true;
+				request.notifyAll();
+			}
+		}
+	}
+
+	public synchronized String toString() {
+		return "BATCHES:" + batches + " OPENS:" + opens;
+	}
+
+
+	/*
+	 * Request class, used to record one open waiting in a batch
+	 */
+	class Request {
+		public final String path;      // mapped file path
+		public final int option;       // open option
+		public final long version;     // current version in cache
+		public final int inline;       // maximum inline bytes
+		public FileData result;        // result from server
+		public RemoteException error;  // error of batch call
+		public boolean done = false;   // result arrived
+		public boolean lead = false;   // this open sends the next batch
+
+		public Request(String path, int option, long version, int inline) {
+			this.path = path;
+			this.option = option;
+			this.version = version;
+			this.inline = inline;
+		}
+	}
+}
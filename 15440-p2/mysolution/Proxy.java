@@ -14,7 +14,15 @@
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
@@ -23,13 +31,22 @@ import java.rmi.*;
 class Proxy {
     public static String cacheDir;    // cache directory
     public static int cacheSize;      // cache size
-    public static RemoteFile server;  // server RPC interface object
     public static ProxyCache cache;   // LRU cache object
+    public static String shardMap;    // shard map file, null if servers are given in args
+    public static ChunkStore store;   // chunk store, null if dedup disabled
+    public static MemoryTier memory;  // off-heap memory tier, null if disabled
+
+    // consistent hash ring of servers, replaced as a whole when shard map changes
+    private static volatile ShardRing ring = new ShardRing(new ArrayList<String>());
+    // hashmap: endpoint-connection pair for every server
+    private static ConcurrentHashMap<String, ServerConn> conns = new ConcurrentHashMap<String, ServerConn>();
 
     // hashmap: fd-randomAccessFile object pair for uniquely reading writing for each fd
     private static Map<Integer, RandomAccessFile> fd_map = new ConcurrentHashMap<Integer, RandomAccessFile>();
     // hashmap: fd-path pair for recording path
     private static Map<Integer, String> fd_path = new ConcurrentHashMap<Integer, String>();
+    // hashmap: fd-cachedFile pair for read-only files not stored as plain files (manifest or memory)
+    private static Map<Integer, CachedFile> fd_view = new ConcurrentHashMap<Integer, CachedFile>();
     private static Integer fd = 6;   // fd
 
     private final static Object fd_lock = new Object();     // used for lock fd generation
@@ -37,9 +54,25 @@ class Proxy {
     private static final int MAX_FILENUM = 100000000;       // Maximum file that can open
     private static final int EACCESS = -13;       // errno
     private static final int EIO = -5;            // errno
-    private static final int MaxLen = 409600;     // Maxlen for chunking
+    private static final int SHARD_REFRESH = Integer.getInteger("shard.refresh", 5000);  // shard map reload period
+    private static final int STRIPES = Integer.getInteger("upload.stripes", 4);                        // concurrent stripes of one write-back
+    private static final long STRIPE_MIN = Long.getLong("upload.stripeMin", 4 * 1024 * 1024);         // minimum stripe size
+    // stripe uploads of all write-backs, each busy thread holds its own RMI connection to server
+    private static final ExecutorService uploader = Executors.newFixedThreadPool(Math.max(1, STRIPES), new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "stripe-upload");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static final AtomicInteger clients = new AtomicInteger();  // used for client id generation
+    private static String traceFile;                                   // trace recording file, null if not recording
+    static final AtomicLong hits = new AtomicLong();     // opens served by the cached version
+    static final AtomicLong misses = new AtomicLong();   // opens fetching a new version
+    static final ListingCache listings = new ListingCache();  // directory listings answering child checks
 
     private static class FileHandler implements FileHandling {
+        private final int client = clients.incrementAndGet();   // client id, charged for cached files
 
         /**
          * open: proxy open fuction
@@ -52,13 +85,33 @@ class Proxy {
             if (fd_map.size() > MAX_FILENUM) { return Errors.EMFILE; }
 
             // check cache status and get current version
+            String orig_path = path;
             path = mapPath(path);
+            ServerConn conn = route(path);
+            if (conn == null) return EIO;
             long crt_version = getVersion(path);
             boolean inCache = crt_version == -1 ? false : true;
 
-            // if in cache, only get file's metadata, otherwise get data as well
-            FileData new_file = getFileData(path, crt_version, o);
-            if (new_file == null) return Errors.ENOENT;
+            // if in cache under a valid lease, no validation needed
+            // otherwise if in cache, only get file's metadata, otherwise get data as well
+            FileData new_file = null;
+            if (inCache && o == OpenOption.READ) new_file = leasedFile(cacheDir + path + "_r" + crt_version);
+            // a fresh listing of parent directory may answer as well
+            if (new_file == null && (o == OpenOption.READ || o == OpenOption.WRITE)) {
+                new_file = listings.answer(orig_path, crt_version);
+            }
+            long asked = System.currentTimeMillis();
+            if (new_file == null) {
+                new_file = getFileData(conn, path, crt_version, o);
+                if (new_file == null) return Errors.ENOENT;
+                // drop parent listing if server tells otherwise, or if a file may be created
+                if (o == OpenOption.CREATE || o == OpenOption.CREATE_NEW) {
+                    listings.invalidate(orig_path);
+                } else if (!new_file.isDir && !new_file.isError) {
+                    long latest = new_file.version != -1 ? new_file.version : crt_version;
+                    listings.seen(orig_path, new_file.exists() ? latest : -1);
+                }
+            }
 
             // handle no such file and is_directory fault
             if (!new_file.exists() && (o == OpenOption.READ || o == OpenOption.WRITE)) {
@@ -67,6 +120,12 @@ class Proxy {
                 return Errors.EISDIR;
             }
 
+            // count cache hit of an existing file
+            if (new_file.exists() && !new_file.isDir && !new_file.isError && o != OpenOption.CREATE_NEW) {
+                if (inCache && new_file.version == -1) hits.incrementAndGet();
+                else misses.incrementAndGet();
+            }
+
             // do the open operation
             path = cacheDir + path;
             int crt_fd = 0;
@@ -74,7 +133,7 @@ class Proxy {
                 case CREATE:
                     if (new_file.isError) return handleError(new_file.ErrorMsg);
                     crt_fd = getFd();
-                    return open_Create_file(crt_fd, path, new_file, crt_version);
+                    return open_Create_file(conn, crt_fd, path, new_file, crt_version);
 
                 case CREATE_NEW:
                     // error handling
@@ -86,20 +145,29 @@ class Proxy {
 
                 case READ:
                     if (new_file.isError) return handleError(new_file.ErrorMsg);
-                    // if is a directory
+                    // if is a directory, prefetch its listing for opens of children
                     if (new_file.isDirectory()) {
+                        if (listings.enabled() && !listings.isFresh(orig_path)) list(orig_path);
                         crt_fd = getFd();
                         fd_path.put(crt_fd, path);
                         return crt_fd;
                     }
                     // if is a file
                     crt_fd = getFd();
-                    return open_Read_file(crt_fd, path, new_file, crt_version);
+                    int state = open_Read_file(conn, crt_fd, path, new_file, crt_version);
+                    // lease counts from before the request, so it never outlives the server's
+                    if (state >= 0 && new_file.lease > 0) {
+                        long version = new_file.version != -1 ? new_file.version : crt_version;
+                        synchronized (cache_lock) {
+                            cache.setLease(path + "_r" + version, asked + new_file.lease);
+                        }
+                    }
+                    return state;
 
                 case WRITE:
                     if (new_file.isError) return handleError(new_file.ErrorMsg);
                     crt_fd = getFd();
-                    return open_Write_file(crt_fd, path, new_file, crt_version);
+                    return open_Write_file(conn, crt_fd, path, new_file, crt_version);
 
                 default:
                     return Errors.EINVAL;
@@ -116,6 +184,7 @@ class Proxy {
         public long write(int fd, byte[] buf) {
             // error handling
             if (!fd_path.containsKey(fd)) { return Errors.EBADF;}
+            if (fd_view.containsKey(fd)) { return Errors.EBADF;}
             File file = new File(fd_path.get(fd));
             if (!file.exists()) { return Errors.ENOENT; }
             if (file.isDirectory()) { return Errors.EISDIR;}
@@ -150,13 +219,14 @@ class Proxy {
         public long read(int fd, byte[] buf) {
             // error handling
             if (!fd_path.containsKey(fd)) { return Errors.EBADF; }
+            CachedFile view = fd_view.get(fd);
             File file = new File(fd_path.get(fd));
-            if (!file.exists()) { return Errors.ENOENT;}
+            if (view == null && !file.exists()) { return Errors.ENOENT;}
             if (file.isDirectory()) { return Errors.EISDIR;}
 
             RandomAccessFile raf = fd_map.get(fd);
             try {
-                int read_num = raf.read(buf);
+                int read_num = view != null ? view.read(buf) : raf.read(buf);
                 if (read_num == -1) return 0;
                 synchronized (cache_lock) {
                     cache.get(fd_path.get(fd));
@@ -183,8 +253,9 @@ class Proxy {
             // error handling
             if (!fd_path.containsKey(fd)) return (long)Errors.EBADF;
             String path = fd_path.get(fd);
+            CachedFile view = fd_view.get(fd);
             File file = new File(path);
-            if (!file.exists()) { return Errors.ENOENT;}
+            if (view == null && !file.exists()) { return Errors.ENOENT;}
             if (file.isDirectory()) { return Errors.EISDIR; }
 
             // get pos
@@ -193,12 +264,12 @@ class Proxy {
             switch (o) {
                 case FROM_CURRENT:
                     try {
-                        pos = raf.getFilePointer() + pos;
+                        pos = (view != null ? view.getFilePointer() : raf.getFilePointer()) + pos;
                     } catch (IOException e2) { return EIO; }
                     break;
                 case FROM_END:
                     try {
-                        pos = raf.length() + pos;
+                        pos = (view != null ? view.length() : raf.length()) + pos;
                     } catch (IOException e1) { return EIO; }
                     break;
                 case FROM_START:
@@ -210,7 +281,8 @@ class Proxy {
 
             // perform lseek
             try {
-                raf.seek(pos);
+                if (view != null) view.seek(pos);
+                else raf.seek(pos);
                 synchronized (cache_lock) {
                     cache.get(fd_path.get(fd));
                 }
@@ -225,8 +297,11 @@ class Proxy {
          * @return 0 fior success, errno for error
          */
         public int unlink(String path) {
+            ServerConn conn = route(mapPath(path));
+            if (conn == null) return EIO;
             try {
-                String state = server.unlink(path);
+                String state = conn.server.unlink(path);
+                listings.invalidate(path);
                 if (state == null) return 0;
                 else if (state.equals("EACCESS")) return EACCESS;
                 else if (state.equals("EIO")) return EIO;
@@ -252,7 +327,7 @@ class Proxy {
             if (!fd_path.containsKey(fd)) { return Errors.EBADF; }
             String path = fd_path.get(fd);
             File file = new File(path);
-            if (!file.exists()) { return Errors.ENOENT; }
+            if (!fd_view.containsKey(fd) && !file.exists()) { return Errors.ENOENT; }
 
             // if directory
             if (file.isDirectory()) {
@@ -265,43 +340,53 @@ class Proxy {
                 path = path.substring(cacheDir.length());
                 int index = path.lastIndexOf("_w", path.lastIndexOf("_w") - 1);
                 if (index < 0) return EIO;
+                ServerConn conn = route(path.substring(0, index));
+                if (conn == null) return EIO;
+                ChunkSizer sizer = conn.sizer;
 
                 try {
                     // write back data using RPC if no chunking
                     int len = (int) file.length();
                     long version = 0;
-                    if (len <= MaxLen) {
+                    if (len <= sizer.inline()) {
                         path = path.substring(0, index);
                         byte[] data = new byte[len];
                         RandomAccessFile f = new RandomAccessFile(fd_path.get(fd), "r");
                         f.readFully(data, 0, len);
                         f.close();
                         FileData writeBack = new FileData(len, data);
-                        version = server.close(path, writeBack);
+                        long start = System.nanoTime();
+                        version = conn.server.close(path, writeBack);
+                        sizer.sample(len, System.nanoTime() - start);
+                        conn.bytes_up.addAndGet(len);
                         fd_map.get(fd).close();
                     }
 
-                    // write back using chunking
+                    // write back using chunking, chunk size adapts after each call, resumable
+                    // large files are striped over concurrent connections
                     else {
-                        int write = 0;
-                        long offset = 0;
-                        RandomAccessFile f = new RandomAccessFile(fd_path.get(fd), "r");
-                        byte[] buf = new byte[MaxLen];
-                        while (write < len) {
-                            int read_num = f.read(buf);
-                            offset = server.write(path, offset, buf, read_num);
-                            if (offset == -1) return EIO;
-                            write += read_num;
-                        }
-                        f.close();
-                        version = server.close(path, path.substring(0, index));
+                        if (!uploadStriped(conn, path, fd_path.get(fd), len)) return EIO;
+                        version = conn.server.close(path, path.substring(0, index));
                         path = path.substring(0, index);
                     }
+                    listings.invalidate(path.replace("%`%", "/"));
 
-                    // rename it to read version
-                    file.renameTo(new File(cacheDir + path + "_r" + version));
-                    synchronized (cache_lock) {
-                        cache.setNewName(fd_path.get(fd), cacheDir + path + "_r" + version);
+                    // store as chunks if dedup enabled, otherwise rename it to read version
+                    String newName = cacheDir + path + "_r" + version;
+                    if (store != null) {
+                        fd_map.get(fd).close();
+                        Manifest manifest = store.dedup(fd_path.get(fd));
+                        manifest.version = version;
+                        manifest.write(newName);
+                        Files.delete(Paths.get(fd_path.get(fd)));
+                        synchronized (cache_lock) {
+                            cache.setNewManifest(fd_path.get(fd), newName, manifest);
+                        }
+                    } else {
+                        file.renameTo(new File(newName));
+                        synchronized (cache_lock) {
+                            cache.setNewName(fd_path.get(fd), newName);
+                        }
                     }
                 } catch (IOException e) {return EIO;}
             }
@@ -310,31 +395,40 @@ class Proxy {
             else {
                 // if read-only data, decrease reference in cache
                 try {
-                    fd_map.get(fd).close();
+                    CachedFile view = fd_view.remove(fd);
+                    if (view != null) view.close();
+                    else fd_map.get(fd).close();
                     synchronized (cache_lock) {
                         cache.decreaseReference(fd_path.get(fd), 1);
                     }
                 } catch (IOException e) {return EIO;}
             }
-            System.err.println(cache.toString());
+            System.err.println(status());
             fd_map.remove(fd);
             fd_path.remove(fd);
             return 0;
         }
 
 
+        /**
+         * Client session ended, its cached files are no longer charged to it
+         */
         public void clientdone() {
+            synchronized (cache_lock) {
+                cache.clientDone(client);
+            }
         }
 
         /**
          * Open a file with WRITE operation.
+         * @param conn: server owning the file
          * @param crt_fd: fd
          * @param path: file path
          * @param new_file: File's metadata
          * @param crt_version: crt version in cache
          * @return fd or errno
          */
-        private int open_Write_file(int crt_fd, String path, FileData new_file, long crt_version) {
+        private int open_Write_file(ServerConn conn, int crt_fd, String path, FileData new_file, long crt_version) {
             try {
                 // make cache copy for this fd, if not in cache
                 if (crt_version == -1 || new_file.version != -1) {
@@ -342,21 +436,25 @@ class Proxy {
                     path = path + "_w" + crt_fd + "_w" + new_file.version;
                     int state = 0;
                     synchronized (cache_lock) {
-                        state = cache.set(path, (int) new_file.len, 1);
+                        state = cache.set(path, (int) new_file.len, 1, client);
                     }
                     if (state == -1) return Errors.EMFILE;
-                    RandomAccessFile tmp = new RandomAccessFile(path, "rw");
-                    state = readFile(tmp, new_file, orig_path);
-                    if (state != 0) return state;
+                    state = readFile(conn, path, new_file, orig_path);
+                    if (state != 0) {
+                        synchronized (cache_lock) {
+                            cache.remove(path);
+                        }
+                        return state;
+                    }
                 }
 
                 // make a copy of cached file
                 else {
                     String orig_path = path;
                     path = path + "_w" + crt_fd + "_w" + crt_version;
-                    copyFileUsingFileStreams(orig_path + "_r" + crt_version, path);
+                    copyCached(orig_path + "_r" + crt_version, path);
                     synchronized (cache_lock) {
-                        cache.set(path, (int) new File(path).length(), 1);
+                        cache.set(path, (int) new File(path).length(), 1, client);
                     }
                 }
 
@@ -376,33 +474,57 @@ class Proxy {
 
         /**
          * Open a file with READ operation.
+         * @param conn: server owning the file
          * @param crt_fd: fd
          * @param path: file path
          * @param new_file: File's metadata
          * @param crt_version: crt version in cache
          * @return fd or errno
          */
-        private int open_Read_file(int crt_fd, String path, FileData new_file, long crt_version) {
+        private int open_Read_file(ServerConn conn, int crt_fd, String path, FileData new_file, long crt_version) {
             try {
                 // make cache copy if not in cache
                 if (crt_version == -1 || new_file.version != -1) {
+                    // file larger than inline data goes through chunk store
+                    if (store != null && new_file.data.length < new_file.len) {
+                        return open_Read_chunked(conn, crt_fd, path, new_file);
+                    }
                     String orig_path = path;
                     path = path + "_r" + new_file.version;
-                    RandomAccessFile tmp = new RandomAccessFile(path, "rw");
-                    int state = readFile(tmp, new_file, orig_path);
+                    int state = readFile(conn, path, new_file, orig_path);
                     if (state != 0) return state;
                     state = 0;
                     synchronized (cache_lock) {
                         cache.deleteOldVersion(path);
-                        state = cache.set(path, (int) new_file.len, 1);
+                        state = cache.set(path, (int) new_file.len, 1, client);
                     }
                     if (state == -1) return Errors.EMFILE;
                 }
                 // get a cache file
                 else {
                     path = path + "_r" + crt_version;
+                    Manifest manifest = null;
+                    MemoryTier.Block block = null;
                     synchronized (cache_lock) {
+                        try {
+                            while (cache.isFetching(path)) cache_lock.wait();
+                        } catch (InterruptedException e) {
+                            return EIO;
+                        }
+                        cache.promote(path);
                         cache.addReference(path, 1);
+                        block = cache.getBlock(path);
+                        if (store != null) manifest = cache.getManifest(path);
+                    }
+                    if (block != null) {
+                        fd_view.put(crt_fd, new MemoryFile(block));
+                        fd_path.put(crt_fd, path);
+                        return crt_fd;
+                    }
+                    if (manifest != null) {
+                        fd_view.put(crt_fd, new ChunkedFile(store, manifest));
+                        fd_path.put(crt_fd, path);
+                        return crt_fd;
                     }
                 }
 
@@ -419,6 +541,133 @@ class Proxy {
         }
 
 
+        /**
+         * Open a new version with READ operation through the chunk store.
+         * Only chunks the proxy does not hold are read from server,
+         * the cached version is a manifest of chunks.
+         * @param conn: server owning the file
+         * @param crt_fd: fd
+         * @param path: file path
+         * @param new_file: File's metadata
+         * @return fd or errno
+         */
+        private int open_Read_chunked(ServerConn conn, int crt_fd, String path, FileData new_file) {
+            String orig_path = path.substring(cacheDir.length());
+            Manifest manifest;
+            try {
+                manifest = conn.server.manifest(orig_path);
+            } catch (RemoteException e) {
+                return EIO;
+            }
+            if (manifest == null) return Errors.ENOENT;
+            path = path + "_r" + manifest.version;
+
+            // reserve space, or share the version fetched by another client
+            boolean[] missing = null;
+            synchronized (cache_lock) {
+                try {
+                    while (cache.isFetching(path)) cache_lock.wait();
+                } catch (InterruptedException e) {
+                    return EIO;
+                }
+                if (cache.getManifest(path) != null) {
+                    cache.addReference(path, 1);
+                    manifest = cache.getManifest(path);
+                } else {
+                    cache.deleteOldVersion(path);
+                    missing = cache.reserveManifest(path, manifest, client);
+                    if (missing == null) return Errors.EMFILE;
+                }
+            }
+
+            if (missing != null) {
+                List<String> held = new ArrayList<String>();
+                for (int i = 0; i < missing.length; i++) {
+                    if (!missing[i]) held.add(manifest.hashes[i]);
+                }
+                int state = fetchChunks(conn, orig_path, new_file, manifest, missing, held);
+                if (state == 0) {
+                    try {
+                        manifest.write(path);
+                    } catch (IOException e) {
+                        state = EIO;
+                    }
+                }
+                synchronized (cache_lock) {
+                    if (state == 0) cache.commitManifest(path);
+                    else cache.abortManifest(path, held);
+                    cache_lock.notifyAll();
+                }
+                if (state != 0) return state;
+            }
+
+            fd_view.put(crt_fd, new ChunkedFile(store, manifest));
+            fd_path.put(crt_fd, path);
+            return crt_fd;
+        }
+
+
+        /**
+         * Read missing chunks of a manifest into chunk store.
+         * Neighbouring missing chunks are read with one call, up to one chunk size.
+         * @param conn: server owning the file
+         * @param orig_path: mapped file path
+         * @param new_file: File's metadata, for replicas
+         * @param manifest: chunk list
+         * @param missing: flags of chunks to read
+         * @param held: chunk hashes referenced, stored chunks are added
+         * @return 0 on success, errno otherwise
+         */
+        private static int fetchChunks(ServerConn conn, String orig_path, FileData new_file,
+                                       Manifest manifest, boolean[] missing, List<String> held) {
+            long[] offsets = manifest.offsets();
+            ServerConn source = null;
+            if (new_file.version == manifest.version) source = conn.pickReplica(new_file.replicas);
+            if (source == null) source = conn;
+            try {
+                int i = 0;
+                while (i < missing.length) {
+                    if (!missing[i]) { i++; continue; }
+                    int j = i + 1;
+                    while (j < missing.length && missing[j] && offsets[j + 1] - offsets[i] <= conn.sizer.chunk()) j++;
+
+                    // read the run, fall back to primary if replica fails
+                    int len = (int) (offsets[j] - offsets[i]);
+                    byte[] buf = new byte[len];
+                    int got = 0;
+                    while (got < len) {
+                        FileReadData data;
+                        try {
+                            data = source.read(orig_path, offsets[i] + got, len - got);
+                        } catch (RemoteException e) {
+                            if (source == conn) throw e;
+                            data = null;
+                        }
+                        if (data == null || data.size <= 0 || data.version != manifest.version) {
+                            if (source == conn) return EIO;
+                            source = conn;
+                            continue;
+                        }
+                        System.arraycopy(data.data, 0, buf, got, data.size);
+                        got += data.size;
+                    }
+
+                    // verify and store every chunk of the run
+                    for (int k = i; k < j; k++) {
+                        int off = (int) (offsets[k] - offsets[i]);
+                        if (!ContentChunker.hash(buf, off, manifest.lens[k]).equals(manifest.hashes[k])) return EIO;
+                        store.put(manifest.hashes[k], buf, off, manifest.lens[k]);
+                        held.add(manifest.hashes[k]);
+                    }
+                    i = j;
+                }
+            } catch (IOException e) {
+                return EIO;
+            }
+            return 0;
+        }
+
+
         /**
          * Open a file with CREATE NEW operation.
          * @param crt_fd: fd
@@ -432,7 +681,7 @@ class Proxy {
                 path = path + "_w" + crt_fd + "_w" + new_file.version;
                 RandomAccessFile raf = new RandomAccessFile(path, "rw");
                 synchronized (cache_lock) {
-                    cache.set(path, 0, 1);
+                    cache.set(path, 0, 1, client);
                 }
                 fd_map.put(crt_fd, raf);
                 fd_path.put(crt_fd, path);
@@ -448,13 +697,14 @@ class Proxy {
 
         /**
          * Open a file with CREATE operation.
+         * @param conn: server owning the file
          * @param crt_fd: fd
          * @param path: file path
          * @param new_file: File's metadata
          * @param crt_version: crt version in cache
          * @return fd or errno
          */
-        private int open_Create_file(int crt_fd, String path, FileData new_file, long crt_version) {
+        private int open_Create_file(ServerConn conn, int crt_fd, String path, FileData new_file, long crt_version) {
             try {
                 // make cache copy for this fd if not in cache
                 if (crt_version == -1 || new_file.version != -1) {
@@ -462,22 +712,26 @@ class Proxy {
                     path = path + "_w" + crt_fd + "_w" + new_file.version;
                     int state = 0;
                     synchronized (cache_lock) {
-                        state = cache.set(path, (int) new_file.len, 1);
+                        state = cache.set(path, (int) new_file.len, 1, client);
                     }
                     if (state == -1) return Errors.EMFILE;
-                    RandomAccessFile tmp = new RandomAccessFile(path, "rw");
-                    state = readFile(tmp, new_file, orig_path);
-                    if (state != 0) return state;
+                    state = readFile(conn, path, new_file, orig_path);
+                    if (state != 0) {
+                        synchronized (cache_lock) {
+                            cache.remove(path);
+                        }
+                        return state;
+                    }
                 } else {
                     // if in cache, make a new copy for write
                     String cache_path = path + "_r" + crt_version;
                     path = path + "_w" + crt_fd + "_w" + crt_version;
                     int state = 0;
                     synchronized (cache_lock) {
-                        state = cache.set(path, (int) new File(cache_path).length(), 1);
+                        state = cache.set(path, (int) cache.getLength(cache_path), 1, client);
                     }
                     if (state == -1) return Errors.EMFILE;
-                    copyFileUsingFileStreams(cache_path, path);
+                    copyCached(cache_path, path);
                 }
 
                 // put it in map
@@ -496,37 +750,224 @@ class Proxy {
         }
 
         /**
-         * Read a file from server in chunks
-         * @param tmp: used for write to local copy
+         * Read a file from server in chunks, every chunk checked with CRC32C.
+         * Resume from a partial entry of the same version if one is kept.
+         * A chunk failing is retried; if it keeps failing, bytes fetched are kept as a partial entry.
+         * @param conn: server owning the file
+         * @param dest: local copy path
          * @param new_file: file data from server
          * @param orig_path: file's path
          * @return 0 on success, other for errors
          */
-        private static int readFile(RandomAccessFile tmp, FileData new_file, String orig_path) {
+        private static int readFile(ServerConn conn, String dest, FileData new_file, String orig_path) {
+            long have;
+            synchronized (cache_lock) {
+                have = cache.takePartial(orig_path, new_file.version);
+            }
+            String partial = orig_path + "_p" + new_file.version;
+            RandomAccessFile tmp = null;
+            long len = 0;
             try {
-                long total_len = new_file.len;
-                long len = new_file.data.length;
-                tmp.write(new_file.data);
+                boolean inline = new_file.data.length > 0
+                        && new_file.crc == Checksums.crc32c(new_file.data, 0, new_file.data.length);
+                if (have > (inline ? new_file.data.length : 0) && new File(partial).renameTo(new File(dest))) {
+                    // resume after bytes kept by an earlier fetch
+                    tmp = new RandomAccessFile(dest, "rw");
+                    tmp.setLength(have);
+                    tmp.seek(have);
+                    len = have;
+                } else {
+                    if (have >= 0) Files.deleteIfExists(Paths.get(partial));
+                    tmp = new RandomAccessFile(dest, "rw");
+                    if (inline) {
+                        tmp.write(new_file.data);
+                        len = new_file.data.length;
+                    }
+                }
                 new_file.flush();
 
-                FileReadData data;
+                long total_len = new_file.len;
                 long offset = len;
-                orig_path = orig_path.substring(cacheDir.length());
+                String path = orig_path.substring(cacheDir.length());
+
+                // read from least loaded replica holding this version, primary as fallback
+                ServerConn source = conn.pickReplica(new_file.replicas);
+                if (source == null) source = conn;
+                int failures = 0;
                 while (len < total_len) {
-                    data = server.read(orig_path, offset);
-                    if (data == null) return EIO;
-                    tmp.write(data.data);
+                    FileReadData data = null;
+                    try {
+                        data = source.read(path, offset);
+                    } catch (RemoteException e) {
+                        System.err.println("Read " + path + " at " + offset + " failed: " + e.getMessage());
+                    }
+                    boolean valid = data != null && data.size > 0
+                            && data.crc == Checksums.crc32c(data.data, 0, data.size);
+                    if (source != conn && (!valid || data.version != new_file.version)) {
+                        source = conn;
+                        continue;
+                    }
+                    if (!valid) {
+                        if (++failures > Checksums.RETRIES) {
+                            tmp.close();
+                            keepPartial(dest, orig_path, new_file.version, len);
+                            return EIO;
+                        }
+                        Checksums.backoff(failures);
+                        continue;
+                    }
+                    failures = 0;
+                    tmp.write(data.data, 0, data.size);
                     len += data.size;
                     offset = data.offset;
                 }
                 tmp.close();
             } catch (IOException e) {
+                try {
+                    if (tmp != null) tmp.close();
+                    keepPartial(dest, orig_path, new_file.version, len);
+                } catch (IOException e1) {}
                 return EIO;
             }
             new_file.flush();
             return 0;
         }
 
+        /**
+         * Keep bytes of a failed fetch as a partial entry, delete them if no room
+         * @param dest: local copy path
+         * @param orig_path: file's path
+         * @param version: version being fetched
+         * @param len: bytes fetched
+         * @throws IOException
+         */
+        private static void keepPartial(String dest, String orig_path, long version, long len) throws IOException {
+            String partial = orig_path + "_p" + version;
+            if (len <= 0 || !new File(dest).renameTo(new File(partial))) {
+                Files.deleteIfExists(Paths.get(dest));
+                return;
+            }
+            synchronized (cache_lock) {
+                if (cache.savePartial(orig_path, version, len)) return;
+            }
+            Files.deleteIfExists(Paths.get(partial));
+        }
+
+        /**
+         * Upload a local copy in stripes concurrently, then let server assemble them into the shallow copy.
+         * Stripe i goes to tem_path + "_w" + i, which has a shallow copy shape as well.
+         * Small files or a single stripe are uploaded directly.
+         * @param conn: server owning the file
+         * @param tem_path: shallow copy path on server
+         * @param local: local copy path
+         * @param len: bytes to upload
+         * @return true on success
+         * @throws IOException
+         */
+        private static boolean uploadStriped(final ServerConn conn, final String tem_path, final String local, long len)
+                throws IOException {
+            int stripes = (int) Math.min(STRIPES, len / STRIPE_MIN);
+            if (stripes < 2) return upload(conn, tem_path, local, 0, len);
+
+            long size = (len + stripes - 1) / stripes;
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < stripes; i++) {
+                final int index = i;
+                final long start = i * size;
+                final long stripe_len = Math.min(size, len - start);
+                results.add(uploader.submit(new Callable<Boolean>() {
+                    public Boolean call() throws IOException {
+                        return upload(conn, tem_path + "_w" + index, local, start, stripe_len);
+                    }
+                }));
+            }
+            boolean ok = true;
+            for (Future<Boolean> result : results) {
+                try {
+                    ok &= result.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    ok = false;
+                } catch (ExecutionException e) {
+                    System.err.println("Stripe of " + tem_path + " failed: " + e.getCause());
+                    ok = false;
+                }
+            }
+            // stripes are discarded on server if any failed
+            return conn.server.assemble(tem_path, stripes, ok ? len : -1) == len;
+        }
+
+        /**
+         * Upload a range of local copy to a shallow copy on server in checksummed chunks.
+         * Resume a shallow copy left by an earlier close if its content matches,
+         * and resume from the last acknowledged offset after a chunk fails.
+         * @param conn: server owning the file
+         * @param tem_path: shallow copy path on server
+         * @param local: local copy path
+         * @param start: start of range in local copy
+         * @param len: bytes to upload
+         * @return true on success
+         * @throws IOException
+         */
+        private static boolean upload(ServerConn conn, String tem_path, String local, long start, long len) throws IOException {
+            ChunkSizer sizer = conn.sizer;
+            RandomAccessFile f = new RandomAccessFile(local, "r");
+            try {
+                long offset = 0;
+                long[] staged = staged(conn, tem_path);
+                if (staged != null && staged[0] > 0 && staged[0] <= len && staged[1] == Checksums.crc32c(f, start, staged[0])) {
+                    offset = staged[0];
+                }
+
+                int failures = 0;
+                byte[] buf = new byte[0];
+                while (offset < len) {
+                    int chunk = sizer.chunk();
+                    if (buf.length != chunk) buf = new byte[chunk];
+                    f.seek(start + offset);
+                    int read_num = f.read(buf, 0, (int) Math.min(chunk, len - offset));
+                    if (read_num < 0) return false;
+                    long ack = -1;
+                    try {
+                        long sent = System.nanoTime();
+                        ack = conn.server.write(tem_path, offset, buf, read_num, Checksums.crc32c(buf, 0, read_num));
+                        sizer.sample(read_num, System.nanoTime() - sent);
+                    } catch (RemoteException e) {
+                        System.err.println("Write " + tem_path + " at " + offset + " failed: " + e.getMessage());
+                    }
+                    if (ack == offset + read_num) {
+                        conn.bytes_up.addAndGet(read_num);
+                        offset = ack;
+                        failures = 0;
+                        continue;
+                    }
+
+                    // continue from what server has acknowledged
+                    if (++failures > Checksums.RETRIES) return false;
+                    Checksums.backoff(failures);
+                    staged = staged(conn, tem_path);
+                    offset = staged == null ? 0 : Math.min(staged[0], offset + read_num);
+                }
+                return true;
+            } finally {
+                f.close();
+            }
+        }
+
+        /**
+         * Get state of a shallow copy on server
+         * @param conn: server owning the file
+         * @param tem_path: shallow copy path
+         * @return {length, checksum}, null if none or unreachable
+         */
+        private static long[] staged(ServerConn conn, String tem_path) {
+            try {
+                return conn.server.staged(tem_path);
+            } catch (RemoteException e) {
+                return null;
+            }
+        }
+
 
         /** Copy a file from source to dest
          * Used for when making a copy for write
@@ -555,6 +996,22 @@ class Proxy {
             }
         }
 
+        /**
+         * Copy a cached version to a plain file, materialize it if in memory or a manifest
+         * @param src cached version path
+         * @param dest destination file
+         * @throws IOException
+         */
+        private static void copyCached(String src, String dest) throws IOException {
+            Manifest manifest = null;
+            synchronized (cache_lock) {
+                if (cache.copyFromMemory(src, dest)) return;
+                if (store != null) manifest = cache.getManifest(src);
+            }
+            if (manifest != null) store.materialize(manifest, dest);
+            else copyFileUsingFileStreams(src, dest);
+        }
+
         /**
          * Check if a file is read only
          * @param path
@@ -583,6 +1040,27 @@ class Proxy {
             return Errors.EBADF;
         }
 
+        /**
+         * Fetch listing of a directory from every server and cache the merged one.
+         * Nothing is cached if any server is unreachable, a partial listing cannot tell absence.
+         * @param dir: directory path
+         */
+        private void list(String dir) {
+            long asked = System.currentTimeMillis();
+            Listing merged = null;
+            for (String endpoint : ring.endpoints()) {
+                ServerConn conn = connect(endpoint);
+                if (conn == null) return;
+                try {
+                    Listing listing = conn.server.list(mapPath(dir));
+                    merged = merged == null ? listing : merged.merge(listing);
+                } catch (RemoteException e) {
+                    return;
+                }
+            }
+            listings.put(dir, merged, asked);
+        }
+
         /**
          * Map absolute path to client-side path
          * @param orig_path
@@ -592,6 +1070,20 @@ class Proxy {
             return orig_path.replaceAll("/", "%`%");
         }
 
+        /**
+         * Check if a cached version holds a valid read lease
+         * @param key: cached file path with version
+         * @return metadata of an unchanged existing file if leased, null otherwise
+         */
+        private FileData leasedFile(String key) {
+            synchronized (cache_lock) {
+                if (!cache.hasLease(key)) return null;
+            }
+            FileData file = new FileData(0, new byte[0]);
+            file.isExist = true;
+            return file;
+        }
+
         /**
          * Get current version of file in cache.
          * @param path: file path
@@ -622,26 +1114,30 @@ class Proxy {
 
         /**
          * Get a file metadata.
+         * @param conn server owning the file
          * @param path file path
          * @param crt_version cuurent version in cache
          * @param Operation for open
          * @return FileData class contains file metadata
          */
-        private FileData getFileData(String path, long crt_version, OpenOption o) {
+        private FileData getFileData(ServerConn conn, String path, long crt_version, OpenOption o) {
             FileData new_file = null;
+            // small files come inline from primary, chunked reads of the rest go to a replica
+            int inline = conn.sizer.inline();
             try {
+                // concurrent opens to one server are batched by the connection
                 switch (o) {
                     case CREATE:
-                        new_file = server.open(path, 1, crt_version);
+                        new_file = conn.open(path, 1, crt_version, inline);
                         break;
                     case CREATE_NEW:
-                        new_file = server.open(path, 2, crt_version);
+                        new_file = conn.open(path, 2, crt_version, inline);
                         break;
                     case READ:
-                        new_file = server.open(path, 3, crt_version);
+                        new_file = conn.open(path, 3, crt_version, inline);
                         break;
                     case WRITE:
-                        new_file = server.open(path, 4, crt_version);
+                        new_file = conn.open(path, 4, crt_version, inline);
                         break;
                 }
                 return new_file;
@@ -652,30 +1148,228 @@ class Proxy {
         }
     }
 
+    /**
+     * Get the connection of server owning a path.
+     * Connect lazily, the stub is reused afterwards.
+     * @param path: mapped file path
+     * @return server connection, null if no server reachable
+     */
+    private static ServerConn route(String path) {
+        return connect(ring.owner(path));
+    }
+
+    /**
+     * Get the connection of a server, connect lazily
+     * @param endpoint: server host:port, may be null
+     * @return server connection, null if not reachable
+     */
+    private static ServerConn connect(String endpoint) {
+        if (endpoint == null) return null;
+        ServerConn conn = conns.get(endpoint);
+        if (conn != null) return conn;
+        try {
+            conn = ServerConn.connect(endpoint);
+            ServerConn old = conns.putIfAbsent(endpoint, conn);
+            return old == null ? conn : old;
+        } catch (Exception e) {
+            System.err.println("Connect " + endpoint + " failed: " + e.toString());
+            return null;
+        }
+    }
+
+
+    /**
+     * Fetch one file into cache with an open and close, at current server version
+     * @param path: file path
+     * @param pin: true to pin it against eviction
+     * @return 0 for success, errno if error happens
+     */
+    static int warm(String path, boolean pin) {
+        String cache_path = cacheDir + FileHandler.mapPath(path);
+        if (pin) {
+            synchronized (cache_lock) {
+                cache.pin(cache_path);
+            }
+        }
+        FileHandler handler = new FileHandler();
+        int state = handler.open(path, FileHandling.OpenOption.READ);
+        if (state >= 0) state = handler.close(state);
+        handler.clientdone();
+        if (state < 0 && pin) release(path);
+        return state < 0 ? state : 0;
+    }
+
+
+    /**
+     * Release a pinned file
+     * @param path: file path
+     * @return true if it was pinned
+     */
+    static boolean release(String path) {
+        synchronized (cache_lock) {
+            return cache.unpin(cacheDir + FileHandler.mapPath(path));
+        }
+    }
+
+
+    /**
+     * Get cache state
+     * @return readable cache state
+     */
+    static String status() {
+        synchronized (cache_lock) {
+            return listings.enabled() ? cache.toString() + "\n" + listings.toString() : cache.toString();
+        }
+    }
+
+
+    /**
+     * Reload shard map file periodically, swap in a new ring when it changes.
+     * Connections to removed servers are dropped.
+     */
+    private static void refreshShards() {
+        while (true) {
+            try {
+                Thread.sleep(SHARD_REFRESH);
+                List<String> endpoints = ShardRing.load(shardMap);
+                if (endpoints.isEmpty() || endpoints.equals(ring.endpoints())) continue;
+                ring = new ShardRing(endpoints);
+                conns.keySet().retainAll(endpoints);
+                System.err.println("Shard map changed " + ring.toString());
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Shard map reload failed: " + e.getMessage());
+            }
+        }
+    }
+
+
     private static class FileHandlingFactory implements FileHandlingMaking {
         public FileHandling newclient() {
+            // record calls for LoadGen replay if -Dproxy.trace is set
+            if (traceFile != null) return new LoadGen.Recorder(new FileHandler());
             return new FileHandler();
         }
     }
 
 
+    /**
+     * Get counters of cache and traffic
+     * @return {hits, misses, bytes fetched from servers, bytes written back}
+     */
+    static long[] counters() {
+        long down = 0;
+        long up = 0;
+        for (ServerConn conn : conns.values()) {
+            down += conn.bytesDown();
+            up += conn.bytes_up.get();
+        }
+        return new long[] { hits.get(), misses.get(), down, up };
+    }
+
+
+    /**
+     * Create a client handler, as RPCreceiver does for each client
+     * @return new FileHandling
+     */
+    static FileHandling newClient() {
+        return new FileHandlingFactory().newclient();
+    }
+
+
     public static void main(String[] args) throws IOException {
+        init(args);
+        System.err.println("Proxy start to work!");
+        (new RPCreceiver(new FileHandlingFactory())).run();
+    }
+
+
+    /**
+     * Set up cache, servers and admin service from arguments and properties
+     * @param args: server ip, server port, cache dir, cache size, [more servers...]
+     * @throws IOException
+     */
+    static void init(String[] args) throws IOException {
         cacheDir = args[2] + "/";                // cache dir
         cacheSize = Integer.parseInt(args[3]);   // cache size
-        cache = new ProxyCache(cacheSize);       // set up new cache
+        if (Boolean.getBoolean("cache.dedup")) {
+            store = new ChunkStore(cacheDir);    // chunk store under cache dir
+        }
+        long memorySize = Long.getLong("cache.memory", 0);
+        if (memorySize > 0) {
+            memory = new MemoryTier(memorySize, Integer.getInteger("cache.memoryMax", 64 * 1024));
+        }
+        cache = new ProxyCache(cacheSize, store, memory);   // set up new cache
+
+        // quotas: bytes per client, reserved minimum per client, prefix=bytes per directory
+        cache.setClientQuota(Long.getLong("cache.clientQuota", Long.MAX_VALUE), Long.getLong("cache.clientReserve", 0));
+        String dirQuota = System.getProperty("cache.dirQuota");
+        if (dirQuota != null) {
+            for (String quota : dirQuota.split(",")) {
+                int split = quota.lastIndexOf('=');
+                if (split <= 0) continue;
+                String prefix = quota.substring(0, split).trim();
+                if (prefix.startsWith("/")) prefix = prefix.substring(1);
+                cache.addDirQuota(cacheDir + prefix.replaceAll("/", "%`%"), Long.parseLong(quota.substring(split + 1).trim()));
+            }
+        }
 
-        // bind a RMI service
-        try {
-            server = (RemoteFile) Naming.lookup("//" + args[0] +
-                    ":" + args[1] + "/RemoteFile");         //objectname in registry 
-            System.err.println("Proxy ready");
-        } catch (Exception e) {
-            System.err.println("Client exception: " + e.toString());
-            e.printStackTrace();
+        // servers from shard map file, or from args: first one and any extra host:port
+        List<String> endpoints = new ArrayList<String>();
+        shardMap = System.getProperty("shard.map");
+        if (shardMap != null) {
+            endpoints = ShardRing.load(shardMap);
+        } else {
+            endpoints.add(args[0] + ":" + args[1]);
+            for (int i = 4; i < args.length; i++) {
+                if (!endpoints.contains(args[i])) endpoints.add(args[i]);
+            }
         }
+        ring = new ShardRing(endpoints);
 
-        System.err.println("Proxy start to work!");
-        (new RPCreceiver(new FileHandlingFactory())).run();
+        // bind RMI services
+        for (String endpoint : endpoints) {
+            try {
+                conns.put(endpoint, ServerConn.connect(endpoint));
+            } catch (Exception e) {
+                System.err.println("Client exception: " + e.toString());
+                e.printStackTrace();
+            }
+        }
+        System.err.println("Proxy ready " + ring.toString() + " " + conns.values());
+
+        if (shardMap != null) {
+            Thread refresh = new Thread(new Runnable() {
+                public void run() { refreshShards(); }
+            });
+            refresh.setDaemon(true);
+            refresh.start();
+        }
+
+        // record client calls for LoadGen
+        traceFile = System.getProperty("proxy.trace");
+        if (traceFile != null) LoadGen.Recorder.open(traceFile);
+
+        // admin service and warm-up manifest
+        Integer adminPort = Integer.getInteger("proxy.admin");
+        final String warmup = System.getProperty("proxy.warmup");
+        if (adminPort != null || warmup != null) {
+            final Warmup admin = adminPort != null ? Warmup.bind(adminPort) : new Warmup();
+            if (warmup != null) {
+                Thread warm = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            admin.warm(Warmup.load(warmup), Boolean.getBoolean("proxy.warmupPin"));
+                        } catch (IOException e) {
+                            System.err.println("Warm up manifest failed: " + e.getMessage());
+                        }
+                    }
+                });
+                warm.setDaemon(true);
+                warm.start();
+            }
+        }
     }
 }
 
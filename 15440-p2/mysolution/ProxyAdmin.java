@@ -0,0 +1,35 @@
+/**
+ * This is a RPC interface for administration of a proxy.
+ * Batch jobs use it to warm up the cache before they start.
+ *
+ * Author: Yuqi Liu
+ */
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+public interface ProxyAdmin extends Remote {
+
+	/**
+	 * Fetch files into cache in parallel, at current server versions
+	 * @param paths: file paths
+	 * @param pin: true to pin them against eviction until released
+	 * @return number of files fetched
+	 * @throws RemoteException
+	 */
+	int warm(String[] paths, boolean pin) throws RemoteException;
+
+	/**
+	 * Release pinned files, they can be evicted again
+	 * @param paths: file paths
+	 * @return number of files released
+	 * @throws RemoteException
+	 */
+	int release(String[] paths) throws RemoteException;
+
+	/**
+	 * Get cache state
+	 * @return readable cache state
+	 * @throws RemoteException
+	 */
+	String status() throws RemoteException;
+}
@@ -4,9 +4,30 @@
  * LinkedHashMap is used to maintain LRU order.
  * Supports LRU operations including set, get, checkVersionNumer, etc.
  *
+ * With a ChunkStore, a read version may be cached as a manifest of chunks.
+ * Chunk bytes are counted once however many manifests share them.
+ *
+ * With a MemoryTier, small read versions opened often are promoted from disk
+ * to off-heap memory, and demoted back to disk (if it has room) when memory is full.
+ * Memory and disk have separate capacities.
+ *
+ * Disk bytes are charged to the client that brought them in and to every
+ * quota directory prefix the file is under. A client or prefix over its quota
+ * only evicts its own entries. When the cache is full, clients over their fair share
+ * (capacity / active clients) are evicted first, and no client other than the
+ * requester is evicted below its reserved minimum.
+ *
+ * Pinned paths are never evicted, whatever version is cached, until unpinned.
+ *
+ * A version may hold a read lease from server, opens are served without validation until it expires.
+ *
+ * A fetch failing midway keeps its bytes as a partial entry (path + "_p" + version),
+ * a later fetch of the same version resumes from its end. Partial entries are evicted like others.
+ *
  * Author:Yuqi liu
  */
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -16,13 +37,137 @@ import java.util.*;
 @SuppressWarnings("unchecked")
 public class ProxyCache {
 	private final int capacity;   //capacity in byte
-	private int total;            //total used bytes
+	private int total;            //total used bytes of plain files
+	private long reserved;        //bytes reserved for chunks being fetched
 	private LinkedHashMap<String, Entry> map;  // LRU cache
+	private ChunkStore store;     // chunk store, null if dedup disabled
+	private MemoryTier memory;    // memory tier, null if disabled
+	private static final int PROMOTE_HITS = Integer.getInteger("cache.promoteHits", 2);  // opens before promotion
+	public static final int NO_OWNER = -1;   // owner of entries not charged to a client
+
+	private long clientQuota = Long.MAX_VALUE;   // maximum bytes per client
+	private long clientReserve = 0;              // reserved minimum bytes per client
+	private Map<Integer, Long> usage = new HashMap<Integer, Long>();  // client - charged bytes pair
+	private List<Quota> quotas = new ArrayList<Quota>();              // directory prefix quotas
+	private Set<String> pins = new HashSet<String>();                 // pinned cached file paths, without version
 	public ProxyCache(int capacity) {
 		map = new LinkedHashMap<String, Entry>(16, 0.75f, true);
 		this.capacity = capacity;
 	}
 
+	public ProxyCache(int capacity, ChunkStore store) {
+		this(capacity);
+		this.store = store;
+	}
+
+	public ProxyCache(int capacity, ChunkStore store, MemoryTier memory) {
+		this(capacity, store);
+		this.memory = memory;
+	}
+
+	/**
+	 * Set quota and reserved minimum of every client
+	 * @param quota: maximum bytes per client
+	 * @param reserve: bytes per client not evicted by others
+	 */
+	public void setClientQuota(long quota, long reserve) {
+		this.clientQuota = quota;
+		this.clientReserve = reserve;
+	}
+
+
+	/**
+	 * Add a quota for cached files under a path prefix
+	 * @param prefix: cached file path prefix
+	 * @param limit: maximum bytes
+	 */
+	public void addDirQuota(String prefix, long limit) {
+		quotas.add(new Quota(prefix, limit));
+	}
+
+
+	/**
+	 * Pin a path against eviction, for every version cached
+	 * @param path: cached file path without version
+	 */
+	public void pin(String path) {
+		pins.add(path);
+	}
+
+
+	/**
+	 * Release a pinned path
+	 * @param path: cached file path without version
+	 * @return true if it was pinned
+	 */
+	public boolean unpin(String path) {
+		return pins.remove(path);
+	}
+
+
+	/**
+	 * Check if an entry belongs to a pinned path
+	 * @param key: cached file name
+	 * @return true if pinned
+	 */
+	private boolean isPinned(String key) {
+		if (pins.isEmpty()) return false;
+		int index = key.lastIndexOf("_r");
+		return index > 0 && pins.contains(key.substring(0, index));
+	}
+
+
+	/**
+	 * Client session ended, its entries are no longer charged to it
+	 * @param owner: client id
+	 */
+	public void clientDone(int owner) {
+		for (Entry entry : map.values()) {
+			if (entry.owner != owner) continue;
+			long charged = entry.charged;
+			recharge(entry, 0);
+			entry.owner = NO_OWNER;
+			recharge(entry, charged);
+		}
+		usage.remove(owner);
+	}
+
+
+	/**
+	 * Get bytes charged to a client
+	 * @param owner: client id
+	 * @return charged bytes
+	 */
+	private long usage(int owner) {
+		Long result = usage.get(owner);
+		return result == null ? 0 : result;
+	}
+
+
+	/**
+	 * Change bytes an entry charges to its owner and quota prefixes
+	 * @param entry: cache entry
+	 * @param bytes: new charged bytes
+	 */
+	private void recharge(Entry entry, long bytes) {
+		long delta = bytes - entry.charged;
+		if (delta == 0) return;
+		if (entry.owner != NO_OWNER) usage.put(entry.owner, usage(entry.owner) + delta);
+		for (Quota quota : quotas) {
+			if (entry.key.startsWith(quota.prefix)) quota.usage += delta;
+		}
+		entry.charged = bytes;
+	}
+
+
+	/**
+	 * Get used bytes, including chunks and reservations
+	 * @return used bytes
+	 */
+	private long used() {
+		return total + reserved + (store == null ? 0 : store.bytes());
+	}
+
 
 	/**
 	 * check current cached version number in cache
@@ -32,6 +177,7 @@ public class ProxyCache {
 	public long checkVersion(String path) {
 		path = path + "_r";
 		long result = -1;  // current version
+		Entry current = null;  // entry of current version, map.get() would reorder map while iterating
 
 		Iterator i = map.entrySet().iterator();
 		ArrayList<Long> old_version = new ArrayList<Long>();
@@ -44,23 +190,18 @@ public class ProxyCache {
 				long tmp = Long.parseLong(name.substring(name.lastIndexOf("_r") + 2));
 				if (tmp > result) {
 					if (result != -1) {
-						if (map.get(path + result).reference == 0)
+						if (current.reference == 0)
 							old_version.add(result);
 					}
 					result = tmp;
+					current = (Entry) entry.getValue();
 				}
 			}
 		}
 
 		// delete any old version with no reference
 		for (long version : old_version) {
-			Path tmp = Paths.get(path + version);
-			try {
-				Files.delete(tmp);
-			} catch (IOException e) {}
-			int value = map.get(path + version).len;
-			map.remove(path + version);
-			total -= value;
+			deleteEntry(map.remove(path + version));
 		}
 		
 		return result;
@@ -75,24 +216,42 @@ public class ProxyCache {
 	 * @param reference: reference count, -1 when error
 	 */
 	public int set(String key, int value, int reference) {
+		return set(key, value, reference, NO_OWNER);
+	}
+
+
+	/**
+	 * Set a cache charged to a client, see set(key, value, reference)
+	 * @param key:file path
+	 * @param value: length
+	 * @param reference: reference count, -1 when error
+	 * @param owner: client id
+	 */
+	public int set(String key, int value, int reference, int owner) {
 		if (map.containsKey(key)) {
 			Entry entry = (Entry) map.get(key);
 			total -= entry.len;
-			if (canPut(value)) {
+			long charged = entry.charged;
+			recharge(entry, 0);
+			if (canPut(value, entry.owner, key)) {
 				entry.len = value;
 				entry.reference = reference;
 				map.put(key, entry);
 				total += value;
+				recharge(entry, value);
 				return 0;
 			} else {
 				total += entry.len;
+				recharge(entry, charged);
 				return -1;
 			}
 		} else {
-			if (canPut(value)) {
+			if (canPut(value, owner, key)) {
 				Entry entry = new Entry(value, reference, key);
+				entry.owner = owner;
 				map.put(key, entry);
 				total += value;
+				recharge(entry, value);
 				return 0;
 			} else {
 				return -1;
@@ -110,20 +269,25 @@ public class ProxyCache {
 		if (map.containsKey(key)) {
 			Entry entry = (Entry) map.get(key);
 			total -= entry.len;
-			if (canPut(value)) {
+			long charged = entry.charged;
+			recharge(entry, 0);
+			if (canPut(value, entry.owner, key)) {
 				entry.len = value;
 				map.put(key, entry);
 				total += value;
+				recharge(entry, value);
 				return 0;
 			} else {
 				total += entry.len;
+				recharge(entry, charged);
 				return -1;
 			}
 		} else {
-			if (canPut(value)) {
+			if (canPut(value, NO_OWNER, key)) {
 				Entry entry = new Entry(value, 1, key);
 				total += value;
 				map.put(key, entry);
+				recharge(entry, value);
 				return 0;
 			} else {
 				return -1;
@@ -132,6 +296,78 @@ public class ProxyCache {
 	}
 
 
+	/**
+	 * Record a read lease on a cached version
+	 * @param key: cached file path with version
+	 * @param expiry: lease expiry time in ms
+	 */
+	public void setLease(String key, long expiry) {
+		Entry entry = map.get(key);
+		if (entry != null && entry.lease < expiry) entry.lease = expiry;
+	}
+
+
+	/**
+	 * Check if a cached version holds a valid read lease
+	 * @param key: cached file path with version
+	 * @return true if lease not expired
+	 */
+	public boolean hasLease(String key) {
+		Entry entry = map.get(key);
+		return entry != null && entry.lease > System.currentTimeMillis();
+	}
+
+
+	/**
+	 * Keep bytes of a failed fetch as a partial entry
+	 * @param path: cached file path without version
+	 * @param version: version being fetched
+	 * @param len: bytes fetched
+	 * @return true if kept, false if no room
+	 */
+	public boolean savePartial(String path, long version, long len) {
+		return set(path + "_p" + version, (int) len, 0) == 0;
+	}
+
+
+	/**
+	 * Take the partial entry of a version to resume fetching it.
+	 * Partial entries of other versions are deleted.
+	 * @param path: cached file path without version
+	 * @param version: version being fetched
+	 * @return bytes fetched, -1 if no partial entry. The partial file is left on disk
+	 */
+	public long takePartial(String path, long version) {
+		String prefix = path + "_p";
+		String key = prefix + version;
+		long result = -1;
+		Iterator<Entry> i = map.values().iterator();
+		while (i.hasNext()) {
+			Entry entry = i.next();
+			if (!entry.key.startsWith(prefix) || entry.key.indexOf('_', prefix.length()) >= 0) continue;
+			if (entry.key.equals(key)) {
+				i.remove();
+				total -= entry.len;
+				recharge(entry, 0);
+				result = entry.len;
+			} else if (entry.reference == 0) {
+				i.remove();
+				deleteEntry(entry);
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Remove an entry and delete its file
+	 * @param key: cached file path
+	 */
+	public void remove(String key) {
+		deleteEntry(map.remove(key));
+	}
+
+
 	/**
 	 * add reference number to an existing file when open
 	 * @param key: cached file path
@@ -140,6 +376,7 @@ public class ProxyCache {
 	public void addReference(String key, int reference) {
 		if (map.get(key) != null) {
 			((Entry) map.get(key)).reference += reference;
+			((Entry) map.get(key)).hits ++;
 		}
 	}
 
@@ -163,16 +400,8 @@ public class ProxyCache {
 			Map.Entry map_entry = (Map.Entry) i.next();
 			Entry entry = (Entry) map_entry.getValue();
 			if (entry.key.startsWith(prefix) && entry.key.compareTo(key) > 0) {
-				Path tmp = Paths.get(key);
-				try {
-					Files.delete(tmp);
-					int value = map.get(key).len;
-					map.remove(key);
-					total -= value;
-					break;
-				} catch (IOException e) {
-					e.printStackTrace(System.err);
-				}
+				deleteEntry(map.remove(key));
+				break;
 			}
 		}
 	}
@@ -192,15 +421,8 @@ public class ProxyCache {
 
 			// delete file of old version when no reference to this file
 			if (entry.key.startsWith(prefix) && entry.reference == 0 && entry.key.compareTo(newName) < 0) {
-				Path tmp = Paths.get(entry.key);
-				try {
-					Files.delete(tmp);
-					int value = entry.len;
-					i.remove();
-					total -= value;
-				} catch (IOException e) {
-					e.printStackTrace(System.err);
-				}
+				i.remove();
+				deleteEntry(entry);
 			}
 		}
 	}
@@ -216,10 +438,13 @@ public class ProxyCache {
 	public void setNewName(String key, String newName) {
 		if (map.get(key) != null) {
 			Entry entry = (Entry) map.get(key);
+			long charged = entry.charged;
+			recharge(entry, 0);
 			entry.key = newName;
 			entry.reference = 0;
 			map.remove(key);
 			map.put(newName, entry);
+			recharge(entry, charged);
 		}
 
 		// delete old version
@@ -232,46 +457,365 @@ public class ProxyCache {
 	 * @param len: file length
 	 * @return true if can be inserted, false otherwise
 	 */
-	public boolean canPut(int len) {
+	public boolean canPut(long len) {
+		return canPut(len, NO_OWNER, null);
+	}
+
+
+	/**
+	 * Return if len byte can be inserted for a client under quotas and capacity.
+	 * Evict own entries over client quota, entries under a prefix over its quota,
+	 * then fair-share eviction for capacity.
+	 * @param len: file length
+	 * @param owner: client id
+	 * @param key: cached file path, null if not checked against prefix quotas
+	 * @return true if can be inserted, false otherwise
+	 */
+	public boolean canPut(long len, int owner, String key) {
+		// client quota, only its own entries are evicted
+		if (owner != NO_OWNER && usage(owner) + len > clientQuota) {
+			evict(usage(owner) + len - clientQuota, owner, null);
+			if (usage(owner) + len > clientQuota) return false;
+		}
+
+		// directory quota, only entries under the prefix are evicted
+		if (key != null) {
+			for (Quota quota : quotas) {
+				if (!key.startsWith(quota.prefix) || quota.usage + len <= quota.limit) continue;
+				evict(quota.usage + len - quota.limit, NO_OWNER, quota.prefix);
+				if (quota.usage + len > quota.limit) return false;
+			}
+		}
+
 		// if cache not full
-		if (total + len <= capacity)
+		if (used() + len <= capacity)
 			return true;
 
-		// check how many can be delete
-		Iterator i = map.entrySet().iterator();
-		ArrayList<String> list = new ArrayList<String>();
-		int deleted = 0;
-		while (i.hasNext()) {
-			Map.Entry map_entry = (Map.Entry) i.next();
-			Entry entry = (Entry) map_entry.getValue();
-			if (entry.reference == 0) {
-				list.add((String) map_entry.getKey());
-				deleted += entry.len;
-				if ((total - deleted + len) <= capacity)
-					break;
+		// check how many can be delete: first clients over fair share, then clients above reserve
+		long need = used() + len - capacity;
+		int active = usage.size() + (owner != NO_OWNER && !usage.containsKey(owner) ? 1 : 0);
+		long fair = capacity / Math.max(1, active);
+		Map<Integer, Long> projected = new HashMap<Integer, Long>(usage);
+		Set<Entry> victims = new LinkedHashSet<Entry>();
+		long deleted = 0;
+		for (int pass = 0; pass < 2 && deleted < need; pass++) {
+			for (Entry entry : map.values()) {
+				if (deleted >= need) break;
+				if (!evictable(entry) || victims.contains(entry)) continue;
+				long crt = projected.containsKey(entry.owner) ? projected.get(entry.owner) : 0;
+				boolean shared = entry.owner == NO_OWNER;
+				// keep reserved minimum of other clients
+				if (!shared && entry.owner != owner && crt - entry.charged < clientReserve) continue;
+				// first pass only takes from clients over fair share
+				if (pass == 0 && !shared && crt <= fair) continue;
+				victims.add(entry);
+				deleted += freed(entry);
+				if (!shared) projected.put(entry.owner, crt - entry.charged);
 			}
 		}
 
-		// if can delete enough data, delete here, return true
-		if ((total - deleted + len) <= capacity) {
-			for (String key : list) {
-				map.remove(key);
-				Path tmp = Paths.get(key);
-				try {
-					Files.delete(tmp);
-				} catch (IOException e) {
-					e.printStackTrace(System.err);
-				}
+		// if can delete enough data, delete here
+		if (deleted >= need) {
+			for (Entry entry : victims) {
+				deleteEntry(map.remove(entry.key));
 			}
-			total -= deleted;
-			return true;
 		}
 
-		// cannot insert such file now
+		// chunks shared by deleted manifests may stay, check again
+		return used() + len <= capacity;
+	}
+
+
+	/**
+	 * Evict least recently used entries of a client or under a prefix
+	 * @param need: bytes to free
+	 * @param owner: only entries of this client, NO_OWNER for any
+	 * @param prefix: only entries under this prefix, null for any
+	 */
+	private void evict(long need, int owner, String prefix) {
+		List<Entry> victims = new ArrayList<Entry>();
+		long deleted = 0;
+		for (Entry entry : map.values()) {
+			if (deleted >= need) break;
+			if (!evictable(entry)) continue;
+			if (owner != NO_OWNER && entry.owner != owner) continue;
+			if (prefix != null && !entry.key.startsWith(prefix)) continue;
+			victims.add(entry);
+			deleted += entry.charged;
+		}
+		if (deleted < need) return;
+		for (Entry entry : victims) {
+			deleteEntry(map.remove(entry.key));
+		}
+	}
+
+
+	/**
+	 * Check if an entry can be evicted from disk
+	 * @param entry: cache entry
+	 * @return true if no open fd, on disk, not fetching and not pinned
+	 */
+	private boolean evictable(Entry entry) {
+		return entry.reference == 0 && entry.block == null && !entry.fetching && !isPinned(entry.key);
+	}
+
+
+	/**
+	 * Estimate bytes freed on disk by deleting an entry
+	 * @param entry: cache entry
+	 * @return bytes
+	 */
+	private long freed(Entry entry) {
+		return entry.manifest == null ? entry.len : store.exclusive(entry.manifest.hashes);
+	}
+
+
+	/**
+	 * Delete a cached file removed from map, release its chunks if a manifest
+	 * @param entry: removed entry
+	 */
+	private void deleteEntry(Entry entry) {
+		if (entry == null) return;
+		recharge(entry, 0);
+		if (entry.block != null) {
+			memory.free(entry.block);
+			return;
+		}
+		try {
+			Files.deleteIfExists(Paths.get(entry.key));
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+		if (entry.manifest != null) {
+			store.release(entry.manifest.hashes);
+			reserved -= entry.reserved;
+		} else {
+			total -= entry.len;
+		}
+	}
+
+
+	/**
+	 * Promote a read version to memory tier when opened often enough.
+	 * Only versions with no open fd are moved, their disk copy is deleted.
+	 * @param key: cached file path
+	 */
+	public void promote(String key) {
+		Entry entry = map.get(key);
+		if (memory == null || entry == null || entry.block != null || entry.fetching) return;
+		if (entry.reference != 0 || entry.hits + 1 < PROMOTE_HITS || entry.len > memory.maxObject) return;
+		if (!makeRoom(entry.len)) return;
+
+		List<String> files = new ArrayList<String>();
+		if (entry.manifest == null) files.add(key);
+		else for (String hash : entry.manifest.hashes) files.add(store.file(hash));
+		MemoryTier.Block block;
+		try {
+			block = memory.load(files, entry.len);
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+			return;
+		}
+		if (block == null) return;
+
+		// drop the disk copy, then the entry lives in memory
+		deleteEntry(entry);
+		entry.manifest = null;
+		entry.block = block;
+	}
+
+
+	/**
+	 * Demote least recently used memory versions with no open fd until len bytes fit
+	 * @param len: bytes needed in memory
+	 * @return true if fit
+	 */
+	private boolean makeRoom(int len) {
+		if (memory.fits(len)) return true;
+		List<Entry> victims = new ArrayList<Entry>();
+		for (Entry entry : map.values()) {
+			if (entry.block != null && entry.reference == 0 && !isPinned(entry.key)) victims.add(entry);
+		}
+		for (Entry entry : victims) {
+			demote(entry);
+			if (memory.fits(len)) return true;
+		}
 		return false;
 	}
 
 
+	/**
+	 * Move a memory version back to disk, or drop it if disk has no room
+	 * @param entry: memory entry
+	 */
+	private void demote(Entry entry) {
+		MemoryTier.Block block = entry.block;
+		entry.block = null;
+		entry.hits = 0;
+		map.remove(entry.key);
+		if (canPut(entry.len)) {
+			try {
+				memory.store(block, entry.key);
+				map.put(entry.key, entry);
+				total += entry.len;
+				recharge(entry, entry.len);
+			} catch (IOException e) {
+				e.printStackTrace(System.err);
+			}
+		}
+		memory.free(block);
+	}
+
+
+	/**
+	 * Get memory block of a cached version
+	 * @param key: cached file path
+	 * @return Block, null if not in memory
+	 */
+	public MemoryTier.Block getBlock(String key) {
+		Entry entry = map.get(key);
+		return entry == null ? null : entry.block;
+	}
+
+
+	/**
+	 * Write a memory version to a plain file, used to copy for write
+	 * @param key: cached file path
+	 * @param dest: file path
+	 * @return true if the version is in memory and was written
+	 * @throws IOException
+	 */
+	public boolean copyFromMemory(String key, String dest) throws IOException {
+		Entry entry = map.get(key);
+		if (entry == null || entry.block == null) return false;
+		memory.store(entry.block, dest);
+		return true;
+	}
+
+
+	/**
+	 * Get data length of a cached version
+	 * @param key: cached file path
+	 * @return length, of the disk file if not in cache
+	 */
+	public long getLength(String key) {
+		Entry entry = map.get(key);
+		if (entry == null) return new File(key).length();
+		return entry.len;
+	}
+
+
+	/**
+	 * Add a manifest version with one reference, before its missing chunks are fetched.
+	 * Stored chunks are acquired, space of missing chunks is reserved.
+	 * @param key: cached file path
+	 * @param manifest: chunk list from server
+	 * @param owner: client id
+	 * @return flags of missing chunks, null if cannot put
+	 */
+	public boolean[] reserveManifest(String key, Manifest manifest, int owner) {
+		boolean[] missing = new boolean[manifest.hashes.length];
+		long need = 0;
+		Set<String> seen = new HashSet<String>();
+		for (int i = 0; i < missing.length; i++) {
+			if (store.acquire(manifest.hashes[i])) continue;
+			missing[i] = true;
+			if (seen.add(manifest.hashes[i])) need += manifest.lens[i];
+		}
+		if (!canPut(need, owner, key)) {
+			// give back chunks acquired above
+			List<String> acquired = new ArrayList<String>();
+			for (int i = 0; i < missing.length; i++) if (!missing[i]) acquired.add(manifest.hashes[i]);
+			store.release(acquired.toArray(new String[acquired.size()]));
+			return null;
+		}
+		Entry entry = new Entry((int) manifest.len, 1, key);
+		entry.manifest = manifest;
+		entry.reserved = need;
+		entry.fetching = true;
+		entry.owner = owner;
+		reserved += need;
+		map.put(key, entry);
+		recharge(entry, manifest.len);
+		return missing;
+	}
+
+
+	/**
+	 * Missing chunks of a manifest are stored, drop its reservation
+	 * @param key: cached file path
+	 */
+	public void commitManifest(String key) {
+		Entry entry = map.get(key);
+		if (entry == null) return;
+		reserved -= entry.reserved;
+		entry.reserved = 0;
+		entry.fetching = false;
+	}
+
+
+	/**
+	 * Check if chunks of a manifest are still being fetched
+	 * @param key: cached file path
+	 * @return true if fetching
+	 */
+	public boolean isFetching(String key) {
+		Entry entry = map.get(key);
+		return entry != null && entry.fetching;
+	}
+
+
+	/**
+	 * Remove a manifest whose fetch failed
+	 * @param key: cached file path
+	 * @param held: chunk hashes referenced so far
+	 */
+	public void abortManifest(String key, List<String> held) {
+		Entry entry = map.remove(key);
+		if (entry != null) {
+			reserved -= entry.reserved;
+			recharge(entry, 0);
+		}
+		store.release(held.toArray(new String[held.size()]));
+	}
+
+
+	/**
+	 * Get manifest of a cached version
+	 * @param key: cached file path
+	 * @return Manifest, null if a plain file
+	 */
+	public Manifest getManifest(String key) {
+		Entry entry = map.get(key);
+		return entry == null ? null : entry.manifest;
+	}
+
+
+	/**
+	 * Turn a written-back copy into a manifest version, see setNewName
+	 * @param key: old cached file path, a plain file already deleted by caller
+	 * @param newName: new manifest file path
+	 * @param manifest: chunk list, chunks already in store
+	 */
+	public void setNewManifest(String key, String newName, Manifest manifest) {
+		Entry entry = map.remove(key);
+		int owner = NO_OWNER;
+		if (entry != null) {
+			total -= entry.len;
+			recharge(entry, 0);
+			owner = entry.owner;
+		}
+		entry = new Entry((int) manifest.len, 0, newName);
+		entry.manifest = manifest;
+		entry.owner = owner;
+		map.put(newName, entry);
+		recharge(entry, manifest.len);
+
+		// delete old version
+		deleteOldVersion(newName);
+	}
+
+
 	/**
 	 * Used to get a cache entry and insert it to head.
 	 * @param path: file path
@@ -287,7 +831,14 @@ public class ProxyCache {
      */
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
-		sb.append("--Cache capacity:" + capacity + "  --Cache length:" + total + "\n");
+		sb.append("--Cache capacity:" + capacity + "  --Cache length:" + used() + "\n");
+		if (store != null) sb.append(store.toString() + "\n");
+		if (memory != null) sb.append(memory.toString() + "\n");
+		if (!pins.isEmpty()) sb.append("--Pinned:" + pins.size() + "\n");
+		if (!usage.isEmpty()) sb.append("--Client usage:" + usage.toString() + "\n");
+		for (Quota quota : quotas) {
+			sb.append("--Quota " + quota.prefix + ":" + quota.usage + "/" + quota.limit + "\n");
+		}
 
 		// display cache from LRU to MRU
 		Iterator i = map.entrySet().iterator();
@@ -296,7 +847,9 @@ public class ProxyCache {
 		while (i.hasNext()) {
 			Map.Entry map_entry = (Map.Entry) i.next();
 			Entry entry = (Entry) map_entry.getValue();
-			sb.append("[ " + map_entry.getKey() + " : LEN: " + entry.len + " REF: " + entry.reference + "] \n");
+			sb.append("[ " + map_entry.getKey() + " : LEN: " + entry.len + " REF: " + entry.reference
+					+ (entry.manifest != null ? " CHUNKS: " + entry.manifest.hashes.length : "")
+					+ (entry.block != null ? " MEM" : "") + "] \n");
 		}
 
 		return sb.toString();
@@ -310,6 +863,14 @@ public class ProxyCache {
 		public int len;        // cache length
 		public int reference;  // cache reference count
 		public String key;     // cache file path
+		public Manifest manifest;  // chunk list if stored as manifest, len is not counted in total
+		public long reserved;      // bytes reserved for chunks still fetching
+		public boolean fetching;   // chunks still fetching
+		public int hits;           // opens, for promotion
+		public MemoryTier.Block block;  // pages if in memory tier, len is not counted in total
+		public int owner = NO_OWNER;    // client charged for this entry
+		public long charged;            // bytes charged to owner and quota prefixes
+		public long lease;              // read lease expiry in ms, 0 if no lease
 
 		public Entry(int len, int reference, String key) {
 			this.key = key;
@@ -317,4 +878,19 @@ public class ProxyCache {
 			this.reference = reference;
 		}
 	}
-}
\ No newline at end of file
+
+
+	/*
+	 * Quota class, used to record a directory prefix quota
+	 */
+	class Quota {
+		public final String prefix;   // cached file path prefix
+		public final long limit;      // maximum bytes
+		public long usage;            // charged bytes
+
+		public Quota(String prefix, long limit) {
+			this.prefix = prefix;
+			this.limit = limit;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * This is a tool for moving files between servers after the shard map changes.
+ *
+ * Every file on every listed server is checked against the new consistent hash ring.
+ * A file not on its owner is copied to the owner in chunks (shallow copy first, then close)
+ * and unlinked from the old server afterwards.
+ *
+ * Usage: java Rebalance <new host:port,...> [<removed host:port,...>]
+ * Run it after all proxies have loaded the new shard map.
+ *
+ * Author: Yuqi Liu
+ */
+
+import java.util.*;
+
+public class Rebalance {
+	private static final String SHALLOW = "_w0_w0";   // shallow copy suffix, same shape as proxy's
+
+	/**
+	 * Move one file from source to owner server
+	 * @param path: mapped file path
+	 * @param from: server holding the file
+	 * @param to: server owning the file
+	 * @return true on success
+	 */
+	private static boolean move(String path, ServerConn from, ServerConn to) throws Exception {
+		FileData file = from.server.open(path, 5, -1, from.sizer.inline());   // no lease, it is unlinked next
+		if (file == null || !file.exists() || file.isDir || file.isError) return false;
+
+		// small file, write back in a single call
+		if (file.data.length == file.len) {
+			if (to.server.close(path, new FileData(file.len, file.data)) == -1) return false;
+			return from.server.unlink(path.replaceAll("%`%", "/")) == null;
+		}
+
+		// stream data to a shallow copy on new owner
+		String tem_path = path + SHALLOW;
+		long offset = 0;
+		long dest = to.server.write(tem_path, 0, file.data, file.data.length);
+		if (dest == -1) return false;
+		offset = file.data.length;
+		while (offset < file.len) {
+			long start = System.nanoTime();
+			FileReadData data = from.server.read(path, offset, from.sizer.chunk());
+			if (data == null || data.size <= 0) return false;
+			from.sizer.sample(data.size, System.nanoTime() - start);
+			start = System.nanoTime();
+			dest = to.server.write(tem_path, dest, data.data, data.size);
+			if (dest == -1) return false;
+			to.sizer.sample(data.size, System.nanoTime() - start);
+			offset = data.offset;
+		}
+		if (to.server.close(tem_path, path) == -1) return false;
+
+		// remove from old server
+		return from.server.unlink(path.replaceAll("%`%", "/")) == null;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: java Rebalance <new host:port,...> [<removed host:port,...>]");
+			return;
+		}
+		List<String> endpoints = ShardRing.parse(args[0]);
+		ShardRing ring = new ShardRing(endpoints);
+		List<String> scan = new ArrayList<String>(endpoints);
+		if (args.length > 1) {
+			for (String endpoint : ShardRing.parse(args[1])) {
+				if (!scan.contains(endpoint)) scan.add(endpoint);
+			}
+		}
+
+		Map<String, ServerConn> conns = new HashMap<String, ServerConn>();
+		for (String endpoint : scan) conns.put(endpoint, ServerConn.connect(endpoint));
+
+		int moved = 0;
+		int failed = 0;
+		for (String endpoint : scan) {
+			ServerConn from = conns.get(endpoint);
+			for (String path : from.server.listFiles()) {
+				// skip shallow copies of uploads in progress
+				if (path.matches(".*_w\\d+_w-?\\d+")) continue;
+				String owner = ring.owner(path);
+				if (owner.equals(endpoint)) continue;
+				try {
+					if (move(path, from, conns.get(owner))) moved ++;
+					else failed ++;
+				} catch (Exception e) {
+					System.err.println("Move " + path + " failed: " + e.toString());
+					failed ++;
+				}
+			}
+		}
+		System.err.println("Rebalance done " + ring.toString() + " moved:" + moved + " failed:" + failed);
+	}
+}
@@ -13,12 +13,24 @@ public interface RemoteFile extends Remote {
 	/**
 	 * Open a file, return its matadata
 	 * @param path: file path
-	 * @param option: 1-CREATE, 2-CREATE NEW 3-READ 4- WRITE
+	 * @param option: 1-CREATE, 2-CREATE NEW 3-READ 4- WRITE 5-READ without lease (tools)
 	 * @param version: current version in cache
+	 * @param inline: maximum data bytes returned with a new version
 	 * @return FileData class contains file metadata
 	 * @throws RemoteException
      */
-	 FileData open(String path, int option, long version) throws RemoteException;
+	 FileData open(String path, int option, long version, int inline) throws RemoteException;
+
+	/**
+	 * Open many files in one call, see open()
+	 * @param paths: file paths
+	 * @param options: open option of each path
+	 * @param versions: current version in cache of each path
+	 * @param inline: maximum data bytes returned with each new version
+	 * @return FileData of each path, in the same order
+	 * @throws RemoteException
+	 */
+	 FileData[] openBatch(String[] paths, int[] options, long[] versions, int inline) throws RemoteException;
 
 	/**
 	 * Close a file with writeBack data in a single RPC call
@@ -52,10 +64,11 @@ public interface RemoteFile extends Remote {
 	 * Read a file from pointer offset
 	 * @param path file path
 	 * @param offset current file pointer
+	 * @param len maximum bytes to read
 	 * @return FileReadData class containing of ReadData and next read pointer
 	 * @throws RemoteException
      */
-	 FileReadData read(String path, long offset) throws RemoteException;
+	 FileReadData read(String path, long offset, int len) throws RemoteException;
 
 	/**
 	 * Write bytes of size to a file from buf. The write begins from offset
@@ -67,4 +80,85 @@ public interface RemoteFile extends Remote {
 	 * @throws RemoteException
      */
 	 long write(String path, long offset, byte[] buf, int size) throws RemoteException;
+
+	/**
+	 * Write a checksummed chunk to a shallow copy, the copy is truncated when offset is 0
+	 * @param path: shallow copy path
+	 * @param offset: file pointer
+	 * @param buf: data
+	 * @param size: data size
+	 * @param crc: CRC32C of data
+	 * @return file pointer after write (acknowledged offset), -1 if error, -2 if checksum mismatch
+	 * @throws RemoteException
+	 */
+	 long write(String path, long offset, byte[] buf, int size, long crc) throws RemoteException;
+
+	/**
+	 * Get state of a shallow copy, used to resume an upload
+	 * @param path: shallow copy path
+	 * @return {length, CRC32C of whole copy}, null if no such copy
+	 * @throws RemoteException
+	 */
+	 long[] staged(String path) throws RemoteException;
+
+	/**
+	 * Negotiate chunk size limit between proxy and server
+	 * @param max maximum chunk size the proxy wants
+	 * @return maximum chunk size both sides accept
+	 * @throws RemoteException
+	 */
+	 int negotiateChunk(int max) throws RemoteException;
+
+	/**
+	 * List all regular files stored on this server, used for rebalancing
+	 * @return mapped paths of files relative to root directory
+	 * @throws RemoteException
+	 */
+	 String[] listFiles() throws RemoteException;
+
+	/**
+	 * List children of a directory with their sizes and versions
+	 * @param path: directory path (mapped)
+	 * @return listing, null if not a directory on this server
+	 * @throws RemoteException
+	 */
+	 Listing list(String path) throws RemoteException;
+
+	/**
+	 * Concatenate stripes of a shallow copy into the shallow copy, stripes are deleted
+	 * Stripe i is stored at path + "_w" + i. Stripes are only concatenated if all of them
+	 * are present and add up to len, otherwise they are discarded.
+	 * @param path: shallow copy path
+	 * @param stripes: number of stripes
+	 * @param len: expected length, -1 to discard the stripes
+	 * @return length of assembled shallow copy, -1 if error or discarded
+	 * @throws RemoteException
+	 */
+	 long assemble(String path, int stripes, long len) throws RemoteException;
+
+	/**
+	 * Get replicas of this server
+	 * @return host:port of replicas, empty if no replica
+	 * @throws RemoteException
+	 */
+	 String[] replicas() throws RemoteException;
+
+	/**
+	 * Commit a version shipped from primary.
+	 * Data is written to a shallow copy first, this copies it to the master copy.
+	 * @param tem_path shallow copy path
+	 * @param path file path
+	 * @param version version on primary
+	 * @return version stored on this replica, -1 when error
+	 * @throws RemoteException
+	 */
+	 long replicate(String tem_path, String path, long version) throws RemoteException;
+
+	/**
+	 * Get content-defined chunk list of current version, so proxy only reads chunks it lacks
+	 * @param path file path
+	 * @return Manifest with version set, null if not a regular file
+	 * @throws RemoteException
+	 */
+	 Manifest manifest(String path) throws RemoteException;
 }
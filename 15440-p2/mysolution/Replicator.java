@@ -0,0 +1,222 @@
+/**
+ * This is a class for shipping committed versions from primary to read replicas.
+ *
+ * Every replica has a single thread executor so versions arrive in commit order.
+ * A version is streamed in chunks to a shallow copy on the replica and committed
+ * with replicate(), which keeps the primary's version number.
+ * If the file changes again before shipping finishes, the old version is skipped,
+ * the newer commit ships itself.
+ *
+ * Replication lag and counters of every replica are kept for metrics.
+ *
+ * Author: Yuqi Liu
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Replicator {
+	private static final String SHALLOW = "_w0_w";   // shallow copy suffix on replica
+
+	private final String rootdir;                   // primary root directory
+	private final List<Replica> replicas = new ArrayList<Replica>();
+	// path - (replica endpoint - version) pair, versions each replica holds
+	private final ConcurrentHashMap<String, Map<String, Long>> holders = new ConcurrentHashMap<String, Map<String, Long>>();
+
+	public Replicator(String rootdir, List<String> endpoints) {
+		this.rootdir = rootdir;
+		for (String endpoint : endpoints) replicas.add(new Replica(endpoint));
+	}
+
+	/**
+	 * Get replica endpoints
+	 * @return host:port of every replica
+	 */
+	public String[] endpoints() {
+		String[] result = new String[replicas.size()];
+		for (int i = 0; i < result.length; i++) result[i] = replicas.get(i).endpoint;
+		return result;
+	}
+
+	/**
+	 * Get replicas holding a version
+	 * @param path: mapped file path
+	 * @param version: wanted version
+	 * @return host:port of replicas holding it
+	 */
+	public String[] holders(String path, long version) {
+		Map<String, Long> versions = holders.get(path);
+		if (versions == null) return new String[0];
+		List<String> result = new ArrayList<String>();
+		for (Map.Entry<String, Long> entry : versions.entrySet()) {
+			if (entry.getValue() == version) result.add(entry.getKey());
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
+	/**
+	 * Ship a committed version to all replicas asynchronously
+	 * @param path: mapped file path
+	 * @param version: committed version
+	 */
+	public void ship(final String path, final long version) {
+		final long commit = System.currentTimeMillis();
+		for (final Replica replica : replicas) {
+			replica.pending.incrementAndGet();
+			replica.executor.submit(new Runnable() {
+				public void run() {
+					try {
+						shipTo(replica, path, version, commit);
+					} finally {
+						replica.pending.decrementAndGet();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Unlink a file on all replicas asynchronously
+	 * @param path: file path (not mapped)
+	 */
+	public void unlink(final String path) {
+		holders.remove(path.replaceAll("/", "%`%"));
+		for (final Replica replica : replicas) {
+			replica.executor.submit(new Runnable() {
+				public void run() {
+					try {
+						RemoteFile server = replica.connect();
+						if (server != null) server.unlink(path);
+					} catch (IOException e) {
+						replica.drop();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stream one version to one replica
+	 * @param replica: target replica
+	 * @param path: mapped file path
+	 * @param version: committed version
+	 * @param commit: commit time, for lag
+	 */
+	private void shipTo(Replica replica, String path, long version, long commit) {
+		File file = new File(rootdir + path.replaceAll("%`%", "/"));
+		if (file.lastModified() != version) { replica.skipped.incrementAndGet(); return; }
+
+		RemoteFile server = replica.connect();
+		if (server == null) { replica.failed.incrementAndGet(); return; }
+
+		String tem_path = path + SHALLOW + version;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			long len = raf.length();
+			long offset = 0;
+			byte[] buf = new byte[(int) Math.max(0, Math.min(len, replica.sizer.chunk()))];
+			do {
+				int size = raf.read(buf, 0, buf.length);
+				if (size < 0) size = 0;
+				long start = System.nanoTime();
+				offset = server.write(tem_path, offset, buf, size);
+				replica.sizer.sample(size, System.nanoTime() - start);
+				if (offset == -1) { replica.failed.incrementAndGet(); return; }
+			} while (offset < len);
+			raf.close();
+			raf = null;
+
+			// superseded while shipping, the newer commit ships itself
+			if (file.lastModified() != version) { replica.skipped.incrementAndGet(); return; }
+
+			long stored = server.replicate(tem_path, path, version);
+			if (stored == -1) { replica.failed.incrementAndGet(); return; }
+			Map<String, Long> versions = holders.get(path);
+			if (versions == null) {
+				versions = new ConcurrentHashMap<String, Long>();
+				Map<String, Long> old = holders.putIfAbsent(path, versions);
+				if (old != null) versions = old;
+			}
+			versions.put(replica.endpoint, stored);
+
+			long lag = System.currentTimeMillis() - commit;
+			replica.shipped.incrementAndGet();
+			replica.bytes.addAndGet(len);
+			replica.lag = lag;
+			if (lag > replica.max_lag) replica.max_lag = lag;
+		} catch (IOException e) {
+			replica.failed.incrementAndGet();
+			replica.drop();
+		} finally {
+			if (raf != null) {
+				try { raf.close(); } catch (IOException e) {}
+			}
+		}
+	}
+
+	/**
+	 * Readable representation of replication state
+	 * @return String of lag and counters of each replica
+	 */
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Replica replica : replicas) {
+			sb.append("[ " + replica.endpoint + " : PENDING: " + replica.pending.get()
+					+ " SHIPPED: " + replica.shipped.get() + " BYTES: " + replica.bytes.get()
+					+ " SKIPPED: " + replica.skipped.get() + " FAILED: " + replica.failed.get()
+					+ " LAG(ms): " + replica.lag + " MAXLAG(ms): " + replica.max_lag + "] \n");
+		}
+		return sb.toString();
+	}
+
+
+	/*
+	 * Replica class, used to record replica connection and counters
+	 */
+	class Replica {
+		public final String endpoint;        // host:port
+		public final ChunkSizer sizer = new ChunkSizer();
+		public final ExecutorService executor = Executors.newSingleThreadExecutor();
+		public final AtomicInteger pending = new AtomicInteger();  // versions waiting to ship
+		public final AtomicLong shipped = new AtomicLong();        // versions shipped
+		public final AtomicLong skipped = new AtomicLong();        // superseded versions
+		public final AtomicLong failed = new AtomicLong();         // failed shipping
+		public final AtomicLong bytes = new AtomicLong();          // bytes shipped
+		public volatile long lag = 0;        // lag of last shipped version in ms
+		public volatile long max_lag = 0;    // max lag in ms
+		private RemoteFile server;           // replica RPC interface object
+
+		public Replica(String endpoint) {
+			this.endpoint = endpoint;
+		}
+
+		/**
+		 * Connect to replica lazily, only used by the replica's executor thread
+		 * @return replica RPC interface object, null if cannot connect
+		 */
+		public RemoteFile connect() {
+			if (server != null) return server;
+			try {
+				server = (RemoteFile) java.rmi.Naming.lookup("//" + endpoint + "/RemoteFile");
+				sizer.negotiate(server);
+			} catch (Exception e) {
+				System.err.println("Connect replica " + endpoint + " failed: " + e.toString());
+				server = null;
+			}
+			return server;
+		}
+
+		/**
+		 * Drop connection after error, reconnect on next shipping
+		 */
+		public void drop() { server = null; }
+	}
+}
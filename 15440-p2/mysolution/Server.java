@@ -8,10 +8,20 @@
  *
  * When chunking data happens, make a shallow copy first and write back after all data received.
  *
+ * Read opens get a time-bounded lease, write-backs and unlinks wait until leases expire.
+ *
+ * Disk-bound work is bounded by a semaphore. A permit is taken after the path lock,
+ * so calls waiting on a busy file hold no permit. RMI threads wait for the reply anyway,
+ * operations run on them without an executor hop.
+ * Per-path locks are created with putIfAbsent, no monitor is held around I/O.
+ *
+ * Every operation is instrumented by ServerMetrics (JMX and -Dserver.metricsFile).
+ *
  * Author: Yuqi Liu
  */
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
@@ -21,18 +31,37 @@ import java.rmi.RemoteException;
 import java.rmi.Naming;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 public class Server extends UnicastRemoteObject implements RemoteFile {
 	public String rootdir = "";    // root directory
 	public static File root;       // root directory file object
+	public Replicator replicator;  // ships versions to read replicas, null if no replica
+	public LeaseTable leases = LeaseTable.fromProperties();  // read leases granted to proxies
+	public final ServerMetrics metrics = new ServerMetrics();  // latency, bytes, lock and hot path metrics
 
 	// Each file has a ReentrantReadWriteLock which allows multiple readers or one wirter
-	private Map<String, ReentrantReadWriteLock> locks = new ConcurrentHashMap<String, ReentrantReadWriteLock>();
-	private static final Object map_lock = new Object();  // use to lock hashmap locks when inserting
-	private static final int MaxLen = 409600;             // maximum chunking size
+	private ConcurrentHashMap<String, ReentrantReadWriteLock> locks = new ConcurrentHashMap<String, ReentrantReadWriteLock>();
+	private static final int MaxLen = Integer.getInteger("server.maxChunk", 16 * 1024 * 1024);  // maximum chunking size
+	private static final int DISK_PERMITS = Integer.getInteger("server.diskPermits", 64);      // concurrent disk-bound calls
+	private static final int STATS_PERIOD = Integer.getInteger("server.stats", 10000);         // stats log period
+	private static final String METRICS_FILE = System.getProperty("server.metricsFile");      // snapshot file, null if none
+	private final AtomicInteger active = new AtomicInteger();  // open and read calls in progress, the load
+	private final Semaphore disk = new Semaphore(DISK_PERMITS, true);  // bounds disk-bound work
+	private final ThreadLocal<Boolean> holding = new ThreadLocal<Boolean>();  // this thread holds a disk permit
+	private final AtomicLong served = new AtomicLong();        // open and read calls served
+	private static final int MANIFEST_CACHE = 4096;           // manifests kept in memory
+	// path - manifest of its latest chunked version, in LRU order
+	private final Map<String, Manifest> manifests = Collections.synchronizedMap(
+			new LinkedHashMap<String, Manifest>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<String, Manifest> eldest) {
+					return size() > MANIFEST_CACHE;
+				}
+			});
 	
 	protected Server() throws RemoteException {
 		super();
@@ -46,29 +75,43 @@ public class Server extends UnicastRemoteObject implements RemoteFile {
 	 * @return latest version number, -1 if error
 	 * @throws RemoteException
      */
-	public long close(String path, FileData writeBack) throws RemoteException {
+	public long close(final String path, final FileData writeBack) throws RemoteException {
+		// wait for read leases before the operation, not holding a disk permit
+		long start = System.nanoTime();
+		metrics.hit(path);
+		metrics.bytesIn(writeBack.data.length);
+		leases.acquire(getOrigPath(path));
+		try {
+			return execute(ServerMetrics.CLOSE, start, new Callable<Long>() {
+				public Long call() { return doClose(path, writeBack); }
+			});
+		} finally {
+			leases.release(getOrigPath(path));
+		}
+	}
+
+	/**
+	 * Close a file and write back data, see close(path, writeBack)
+	 */
+	private long doClose(String path, FileData writeBack) {
+		String mapped = path;
 		path = rootdir + getOrigPath(path);
+		long version = -1;
 		try {
 			// get write lock
-			if (locks.get(path) != null) {
-				locks.get(path).writeLock().lock();
-			} else {
-				synchronized(map_lock) {
-					if (locks.get(path) == null) {
-						locks.put(path, new ReentrantReadWriteLock());
-					}
-					locks.get(path).writeLock().lock();
-				}
-			}
+			lockWrite(path, ServerMetrics.CLOSE);
 			// write back
+			makeParentDirs(path);
 			FileOutputStream output = new FileOutputStream(path, false);
 			output.write(writeBack.data);
 			output.close();
-			return new File(path).lastModified();
+			version = new File(path).lastModified();
+			return version;
 		} catch (IOException e) {
 			return -1;
 		} finally {
 			locks.get(path).writeLock().unlock();
+			if (replicator != null && version != -1) replicator.ship(mapped, version);
 		}
 	}
 
@@ -80,32 +123,43 @@ public class Server extends UnicastRemoteObject implements RemoteFile {
 	 * @return latest version number, -1 when error
 	 * @throws RemoteException
      */
-	public long close(String tem_path, String path) throws RemoteException {
+	public long close(final String tem_path, final String path) throws RemoteException {
+		long start = System.nanoTime();
+		metrics.hit(path);
+		leases.acquire(getOrigPath(path));
+		try {
+			return execute(ServerMetrics.CLOSE, start, new Callable<Long>() {
+				public Long call() { return doClose(tem_path, path); }
+			});
+		} finally {
+			leases.release(getOrigPath(path));
+		}
+	}
+
+	/**
+	 * Close a file from its shallow copy, see close(tem_path, path)
+	 */
+	private long doClose(String tem_path, String path) {
+		String mapped = path;
 		path = rootdir + getOrigPath(path);
 		tem_path = rootdir + getOrigPath(tem_path);
-		
+		long version = -1;
+
 		try {
 			// get write lock
-			if (locks.get(path) != null) {
-				locks.get(path).writeLock().lock();
-			} else {
-				synchronized(map_lock) {
-					if (locks.get(path) == null) {
-						locks.put(path, new ReentrantReadWriteLock());
-					}
-					locks.get(path).writeLock().lock();
-				}
-			}
+			lockWrite(path, ServerMetrics.CLOSE);
 			// write back the shallow copy to master copy
 			copyFileUsingFileStreams(tem_path, path);
 			Path tmp = Paths.get(tem_path);
 			Files.delete(tmp);
-			return new File(path).lastModified();
+			version = new File(path).lastModified();
+			return version;
 		} catch (IOException e) {
 			return -1;
 		} finally {
 			// release lock
 			locks.get(path).writeLock().unlock();
+			if (replicator != null && version != -1) replicator.ship(mapped, version);
 		}
 	}
 
@@ -116,14 +170,31 @@ public class Server extends UnicastRemoteObject implements RemoteFile {
 	 * @return Error message if error, null if success
 	 * @throws RemoteException
      */
-	public String unlink(String path) throws RemoteException {
-		path = rootdir + path;
-		File file = new File(path);
+	public String unlink(final String path) throws RemoteException {
+		final String orig = path;
+		final File file = new File(rootdir + path);
+
+		// wait for read leases, then get write lock
+		long start = System.nanoTime();
+		metrics.hit(path);
+		leases.acquire(orig);
+		try {
+			return execute(ServerMetrics.UNLINK, start, new Callable<String>() {
+				public String call() { return doUnlink(orig, rootdir + path, file); }
+			});
+		} finally {
+			leases.release(orig);
+		}
+	}
 
-		// get write lock
+	/**
+	 * Unlink a file, see unlink()
+	 */
+	private String doUnlink(String orig, String path, File file) {
 		if (locks.get(path) != null) {
-			locks.get(path).writeLock().lock();
+			lockWrite(path, ServerMetrics.UNLINK);
 		}
+		permit(ServerMetrics.UNLINK);
 
 		// error handling
 		if (!file.exists()) {
@@ -144,6 +215,7 @@ public class Server extends UnicastRemoteObject implements RemoteFile {
 		try {
 			Path tmp = Paths.get(path);
 			Files.delete(tmp);
+			if (replicator != null) replicator.unlink(orig);
 			return null;
 		} catch (SecurityException e) {
 			return "EPERM";
@@ -158,9 +230,7 @@ public class Server extends UnicastRemoteObject implements RemoteFile {
 		} finally {
 			if (locks.get(path) != null) {
 				locks.get(path).writeLock().unlock();
-				synchronized(map_lock) {
-					locks.remove(path);
-				}
+				locks.remove(path);
 			} 
 		}
 	}
@@ -169,12 +239,67 @@ public class Server extends UnicastRemoteObject implements RemoteFile {
 	 * Open a file at path.
 	 * Return file's metadata. If new version detected, return file data as well.
 	 * @param path: file path
-	 * @param option: open operation(1-create, 2-createnew, 3-read, 4-write)
+	 * @param option: open operation(1-create, 2-createnew, 3-read, 4-write, 5-read without lease)
 	 * @param version: cache latest version
+	 * @param inline: maximum data bytes returned with a new version
 	 * @return FileData class contains file's metadata, null if not in rootdir
 	 * @throws RemoteException
 	 */
-	public FileData open(String path, int option, long version) throws RemoteException {
+	public FileData open(final String path, final int option, final long version, final int inline) throws RemoteException {
+		active.incrementAndGet();
+		try {
+			// grant read lease on a regular file before reading the version,
+			// so a write-back committing meanwhile waits for it
+			final String orig = getOrigPath(path);
+			long lease = option == 3 && new File(rootdir + orig).isFile() ? leases.grant(orig) : 0;
+			metrics.hit(path);
+			FileData file_data = execute(ServerMetrics.OPEN, System.nanoTime(), new Callable<FileData>() {
+				public FileData call() throws RemoteException { return doOpen(path, option == 5 ? 3 : option, version, inline); }
+			});
+			if (file_data != null && file_data.data != null) metrics.bytesOut(file_data.data.length);
+			// tell proxy which replicas can serve the new version
+			if (replicator != null && file_data != null && file_data.version != -1) {
+				file_data.replicas = replicator.holders(path, file_data.version);
+			}
+			// read lease on the version proxy will cache
+			if (file_data != null && file_data.exists() && !file_data.isDir && !file_data.isError) {
+				file_data.lease = lease;
+			} else if (lease > 0 && !new File(rootdir + orig).isFile()) {
+				// the file went away meanwhile, no lease returned
+				leases.revoke(orig);
+			}
+			return file_data;
+		} finally {
+			active.decrementAndGet();
+			served.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Open many files in one call. Inline data of the whole batch is bounded by MaxLen,
+	 * files past the limit return metadata only and are read in chunks.
+	 * @param paths: file paths
+	 * @param options: open option of each path
+	 * @param versions: current version in cache of each path
+	 * @param inline: maximum data bytes returned with each new version
+	 * @return FileData of each path, in the same order
+	 * @throws RemoteException
+	 */
+	@Override
+	public FileData[] openBatch(String[] paths, int[] options, long[] versions, int inline) throws RemoteException {
+		FileData[] result = new FileData[paths.length];
+		long budget = MaxLen;
+		for (int i = 0; i < paths.length; i++) {
+			result[i] = open(paths[i], options[i], versions[i], (int) Math.min(inline, budget));
+			if (result[i] != null && result[i].data != null) budget -= result[i].data.length;
+		}
+		return result;
+	}
+
+	/**
+	 * Open a file at path, see open()
+	 */
+	private FileData doOpen(String path, int option, long version, int inline) throws RemoteException {
 		// if not in root directory
 		path = rootdir + getOrigPath(path);
 		File file = new File(path);
@@ -182,14 +307,7 @@ public class Server extends UnicastRemoteObject implements RemoteFile {
 		FileData file_data = new FileData(0, new byte[0]);
 
 		// get read lock
-		if (locks.get(path) != null) {
-			locks.get(path).readLock().lock();
-		} else {
-			synchronized(map_lock) {
-				if (locks.get(path) == null) {locks.put(path, new ReentrantReadWriteLock());}
-				locks.get(path).readLock().lock();
-			}
-		}
+		lockRead(path, ServerMetrics.OPEN);
 
 		// if file exist
 		if (file.exists()) {
@@ -216,12 +334,14 @@ public class Server extends UnicastRemoteObject implements RemoteFile {
 					// if new version detected, return data as well
 					if (server_version > version) {
 						long size = file.length();
-						byte[] data = new byte[MaxLen <= (int)size? MaxLen:(int)size];
+						int limit = Math.max(0, Math.min(inline, MaxLen));
+						byte[] data = new byte[(int) Math.min(limit, size)];
 						raf.read(data);
 						raf.close();
 						file_data.version = server_version;
 						file_data.len = size;
 						file_data.data = data;
+						file_data.crc = Checksums.crc32c(data, 0, data.length);
 					}
 				} catch (FileNotFoundException e) {
 					file_data.isError = true;
@@ -272,37 +392,55 @@ public class Server extends UnicastRemoteObject implements RemoteFile {
 	}
 
 	/**
-	 * Read data from a file at offset, maximum reading size MaxLen
+	 * Read data from a file at offset, maximum reading size len (at most MaxLen)
 	 * Used for chunking read.
 	 * @param path: file path
 	 * @param offset: file pointer
+	 * @param len: maximum bytes to read
 	 * @return FileReadData class contains data read
 	 * @throws RemoteException
      */
 	@Override
-	public FileReadData read(String path, long offset) throws RemoteException {
+	public FileReadData read(final String path, final long offset, final int len) throws RemoteException {
+		metrics.hit(path);
+		FileReadData data = execute(ServerMetrics.READ, System.nanoTime(), new Callable<FileReadData>() {
+			public FileReadData call() { return doRead(path, offset, len); }
+		});
+		if (data != null) metrics.bytesOut(Math.max(0, data.size));
+		return data;
+	}
+
+	/**
+	 * Read data from a file, see read()
+	 */
+	private FileReadData doRead(String path, long offset, int len) {
 		path = rootdir + getOrigPath(path);
+		int load = active.incrementAndGet();
 		try {
 			// get read lock
-			synchronized(map_lock) {
-				if (locks.get(path) == null) {
-					locks.put(path, new ReentrantReadWriteLock());
-				}
-				locks.get(path).readLock().lock();
-			}
+			lockRead(path, ServerMetrics.READ);
 
 			// read data
-			RandomAccessFile raf = new RandomAccessFile(path, "rw");
+			RandomAccessFile raf = new RandomAccessFile(path, "r");
 			raf.seek(offset);
-			byte[] buf = new byte[MaxLen];
-			int size = raf.read(buf, 0, MaxLen);
+			len = (int) Math.max(0, Math.min(Math.min(len, MaxLen), raf.length() - offset));
+			byte[] buf = new byte[len];
+			int size = raf.read(buf, 0, len);
 			offset = raf.getFilePointer();
 			raf.close();
-			if (size < MaxLen) return new FileReadData(offset, Arrays.copyOf(buf, size), size);
-			return new FileReadData(offset, buf, size);
+			FileReadData data;
+			if (size < 0) data = new FileReadData(offset, new byte[0], 0);
+			else if (size < len) data = new FileReadData(offset, Arrays.copyOf(buf, size), size);
+			else data = new FileReadData(offset, buf, size);
+			data.version = new File(path).lastModified();
+			data.load = load;
+			data.crc = Checksums.crc32c(data.data, 0, data.size);
+			return data;
 		} catch (IOException e) {
 			e.printStackTrace(System.err);
 		} finally {
+			active.decrementAndGet();
+			served.incrementAndGet();
 			if (locks.get(path) != null) {
 				locks.get(path).readLock().unlock();
 			}
@@ -322,10 +460,131 @@ public class Server extends UnicastRemoteObject implements RemoteFile {
 	 * @throws RemoteException
      */
 	@Override
-	public long write(String path, long offset, byte[] buf, int size) throws RemoteException {
+	public long write(final String path, final long offset, final byte[] buf, final int size) throws RemoteException {
+		metrics.bytesIn(size);
+		return execute(ServerMetrics.WRITE, System.nanoTime(), new Callable<Long>() {
+			public Long call() { return doWrite(path, offset, buf, size, false); }
+		});
+	}
+
+	/**
+	 * Write a checksummed chunk to a shallow copy, see RemoteFile.write(path, offset, buf, size, crc)
+	 * @param path: shallow copy path
+	 * @param offset: file pointer
+	 * @param buf: data
+	 * @param size: data size
+	 * @param crc: CRC32C of data
+	 * @return next file pointer after write, -1 if error, -2 if checksum mismatch
+	 * @throws RemoteException
+	 */
+	@Override
+	public long write(final String path, final long offset, final byte[] buf, final int size, long crc) throws RemoteException {
+		metrics.bytesIn(size);
+		if (Checksums.crc32c(buf, 0, size) != crc) return -2;
+		return execute(ServerMetrics.WRITE, System.nanoTime(), new Callable<Long>() {
+			public Long call() { return doWrite(path, offset, buf, size, offset == 0); }
+		});
+	}
+
+	/**
+	 * Concatenate stripes of a shallow copy, see RemoteFile.assemble(path, stripes, len)
+	 * @param path: shallow copy path
+	 * @param stripes: number of stripes
+	 * @param len: expected length, -1 to discard the stripes
+	 * @return length of assembled shallow copy, -1 if error or discarded
+	 * @throws RemoteException
+	 */
+	@Override
+	public long assemble(final String path, final int stripes, final long len) throws RemoteException {
+		return execute(ServerMetrics.WRITE, System.nanoTime(), new Callable<Long>() {
+			public Long call() { return doAssemble(path, stripes, len); }
+		});
+	}
+
+	/**
+	 * Concatenate stripes, see assemble(path, stripes, len)
+	 */
+	private long doAssemble(String path, int stripes, long len) {
 		path = rootdir + getOrigPath(path);
+		if (!isSubDirectory(new File(path))) return -1;
+		permit(ServerMetrics.WRITE);
 		try {
+			// only a complete upload is assembled
+			long total = 0;
+			for (int i = 0; i < stripes && total >= 0; i++) {
+				File stripe = new File(path + "_w" + i);
+				total = stripe.isFile() ? total + stripe.length() : -1;
+			}
+			if (len < 0 || total != len) return -1;
+
+			FileChannel out = new FileOutputStream(path, false).getChannel();
+			try {
+				for (int i = 0; i < stripes; i++) {
+					FileChannel in = new FileInputStream(path + "_w" + i).getChannel();
+					try {
+						long pos = 0, size = in.size();
+						while (pos < size) pos += in.transferTo(pos, size - pos, out);
+					} finally {
+						in.close();
+					}
+				}
+				return out.size();
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+			new File(path).delete();
+			return -1;
+		} finally {
+			for (int i = 0; i < stripes; i++) new File(path + "_w" + i).delete();
+		}
+	}
+
+	/**
+	 * Get length and CRC32C of a shallow copy
+	 * @param path: shallow copy path
+	 * @return {length, checksum}, null if not exist
+	 * @throws RemoteException
+	 */
+	@Override
+	public long[] staged(final String path) throws RemoteException {
+		return execute(ServerMetrics.WRITE, System.nanoTime(), new Callable<long[]>() {
+			public long[] call() { return doStaged(path); }
+		});
+	}
+
+	/**
+	 * Get length and CRC32C of a shallow copy, see staged(path)
+	 */
+	private long[] doStaged(String path) {
+		File file = new File(rootdir + getOrigPath(path));
+		if (!isSubDirectory(file) || !file.isFile()) return null;
+		permit(ServerMetrics.WRITE);
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				long len = raf.length();
+				return new long[] { len, Checksums.crc32c(raf, len) };
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Write data to a file at offset, see write()
+	 * @param truncate: drop old content of the file first
+	 */
+	private long doWrite(String path, long offset, byte[] buf, int size, boolean truncate) {
+		path = rootdir + getOrigPath(path);
+		permit(ServerMetrics.WRITE);
+		try {
+			makeParentDirs(path);
 			RandomAccessFile raf = new RandomAccessFile(path, "rw");
+			if (truncate) raf.setLength(0);
 			raf.seek(offset);
 			raf.write(buf, 0, size);;
 			offset = raf.getFilePointer();
@@ -338,6 +597,188 @@ public class Server extends UnicastRemoteObject implements RemoteFile {
 	}
 
 
+	/**
+	 * Negotiate chunk size limit, bounded by server's MaxLen
+	 * @param max maximum chunk size the proxy wants
+	 * @return maximum chunk size both sides accept
+	 * @throws RemoteException
+	 */
+	@Override
+	public int negotiateChunk(int max) throws RemoteException {
+		return Math.min(max, MaxLen);
+	}
+
+
+	/**
+	 * Get replicas of this server
+	 * @return host:port of replicas, empty if no replica
+	 * @throws RemoteException
+	 */
+	@Override
+	public String[] replicas() throws RemoteException {
+		if (replicator == null) return new String[0];
+		return replicator.endpoints();
+	}
+
+
+	/**
+	 * Commit a version shipped from primary, keeping primary's version number.
+	 * @param tem_path: shallow copy path
+	 * @param path: master copy path
+	 * @param version: version on primary
+	 * @return version stored, -1 when error
+	 * @throws RemoteException
+	 */
+	@Override
+	public long replicate(String tem_path, String path, long version) throws RemoteException {
+		path = rootdir + getOrigPath(path);
+		tem_path = rootdir + getOrigPath(tem_path);
+		ReentrantReadWriteLock lock = lockFor(path);
+		lock.writeLock().lock();
+		try {
+			copyFileUsingFileStreams(tem_path, path);
+			Files.delete(Paths.get(tem_path));
+			File file = new File(path);
+			file.setLastModified(version);
+			return file.lastModified();
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+			return -1;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Get content-defined chunk list of current version.
+	 * Chunking is done once per version, manifests are cached.
+	 * @param path: file path
+	 * @return Manifest with version set, null if not a regular file
+	 * @throws RemoteException
+	 */
+	@Override
+	public Manifest manifest(String path) throws RemoteException {
+		path = rootdir + getOrigPath(path);
+		File file = new File(path);
+		if (!isSubDirectory(file)) return null;
+		ReentrantReadWriteLock lock = lockFor(path);
+		lock.readLock().lock();
+		active.incrementAndGet();
+		try {
+			if (!file.isFile()) return null;
+			long version = file.lastModified();
+			Manifest manifest = manifests.get(path);
+			if (manifest != null && manifest.version == version) return manifest;
+
+			InputStream input = new BufferedInputStream(new FileInputStream(file));
+			try {
+				manifest = ContentChunker.chunk(input, null);
+			} finally {
+				input.close();
+			}
+			manifest.version = version;
+			manifests.put(path, manifest);
+			return manifest;
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+			return null;
+		} finally {
+			active.decrementAndGet();
+			served.incrementAndGet();
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Readable representation of server load and replication
+	 * @return String of counters
+	 */
+	public String stats() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("--Server load:" + active.get() + "  --Served:" + served.get() + "\n");
+		sb.append("--" + leases.toString() + "\n");
+		if (replicator != null) sb.append(replicator.toString());
+		return sb.toString();
+	}
+
+
+	/**
+	 * List all regular files under root directory, used for rebalancing
+	 * @return mapped paths of files relative to root directory
+	 * @throws RemoteException
+	 */
+	@Override
+	public String[] listFiles() throws RemoteException {
+		List<String> result = new ArrayList<String>();
+		listFiles(root, "", result);
+		return result.toArray(new String[result.size()]);
+	}
+
+
+	/**
+	 * List children of a directory, shallow copies of uploads in progress are skipped
+	 * @param path: directory path (mapped)
+	 * @return listing, null if not a directory
+	 * @throws RemoteException
+	 */
+	@Override
+	public Listing list(final String path) throws RemoteException {
+		metrics.hit(path);
+		return execute(ServerMetrics.LIST, System.nanoTime(), new Callable<Listing>() {
+			public Listing call() {
+				File dir = new File(rootdir + getOrigPath(path));
+				if (!isSubDirectory(dir) || !dir.isDirectory()) return null;
+				permit(ServerMetrics.LIST);
+				File[] children = dir.listFiles();
+				if (children == null) return null;
+				List<File> listed = new ArrayList<File>();
+				for (File child : children) {
+					if (!child.getName().matches(".*_w\\d+_w-?\\d+")) listed.add(child);
+				}
+				Listing listing = new Listing(listed.size());
+				listing.version = dir.lastModified();
+				for (int i = 0; i < listed.size(); i++) {
+					File child = listed.get(i);
+					listing.names[i] = child.getName();
+					listing.dirs[i] = child.isDirectory();
+					listing.lens[i] = child.isDirectory() ? 0 : child.length();
+					listing.versions[i] = child.lastModified();
+				}
+				return listing;
+			}
+		});
+	}
+
+
+	/**
+	 * Recursively collect files of a directory
+	 * @param dir: directory to walk
+	 * @param prefix: relative path of dir
+	 * @param result: collected mapped paths
+	 */
+	private static void listFiles(File dir, String prefix, List<String> result) {
+		File[] children = dir.listFiles();
+		if (children == null) return;
+		for (File child : children) {
+			String name = prefix + child.getName();
+			if (child.isDirectory()) listFiles(child, name + "/", result);
+			else if (child.isFile()) result.add(name.replaceAll("/", "%`%"));
+		}
+	}
+
+
+	/**
+	 * Create missing parent directories of a path, e.g. after rebalancing to a new server
+	 * @param path: file path
+	 */
+	private static void makeParentDirs(String path) {
+		File parent = new File(path).getParentFile();
+		if (parent != null && !parent.exists()) parent.mkdirs();
+	}
+
+
 	/**
 	 * Copy file from path str1 to path str2
 	 * @param str1: first file path
@@ -391,6 +832,84 @@ public class Server extends UnicastRemoteObject implements RemoteFile {
 	 * @return: server side path
      */
 	private static String getOrigPath(String new_path) {return new_path.replaceAll("%`%", "/");}
+
+	/**
+	 * Get lock of a path, create if absent
+	 * @param path: full file path
+	 * @return read write lock
+	 */
+	private ReentrantReadWriteLock lockFor(String path) {
+		ReentrantReadWriteLock lock = locks.get(path);
+		if (lock != null) return lock;
+		lock = new ReentrantReadWriteLock();
+		ReentrantReadWriteLock old = locks.putIfAbsent(path, lock);
+		return old == null ? lock : old;
+	}
+
+	/**
+	 * Get read lock of a path, recording lock wait
+	 * @param path: full file path
+	 * @param op: operation index in ServerMetrics
+	 */
+	private void lockRead(String path, int op) {
+		long start = System.nanoTime();
+		lockFor(path).readLock().lock();
+		metrics.locked(op, start);
+		permit(op);
+	}
+
+	/**
+	 * Get write lock of a path, recording lock wait
+	 * @param path: full file path
+	 * @param op: operation index in ServerMetrics
+	 */
+	private void lockWrite(String path, int op) {
+		long start = System.nanoTime();
+		lockFor(path).writeLock().lock();
+		metrics.locked(op, start);
+		permit(op);
+	}
+
+	/**
+	 * Take a disk permit for the rest of the operation, once per operation.
+	 * Called right before disk I/O, after the path lock is held.
+	 * @param op: operation index in ServerMetrics
+	 */
+	private void permit(int op) {
+		if (holding.get() != null) return;
+		long start = System.nanoTime();
+		disk.acquireUninterruptibly();
+		metrics.permit(op, System.nanoTime() - start);
+		holding.set(Boolean.TRUE);
+	}
+
+	/**
+	 * Run a file operation, releasing its disk permit when it ends.
+	 * Latency, permit wait and lock hold (until the operation ends) are recorded.
+	 * @param op: operation index in ServerMetrics
+	 * @param start: call start in System.nanoTime()
+	 * @param task: file operation
+	 * @return result of the operation
+	 * @throws RemoteException
+	 */
+	private <T> T execute(int op, long start, Callable<T> task) throws RemoteException {
+		try {
+			return task.call();
+		} catch (RemoteException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RemoteException(e.toString(), e);
+		} finally {
+			metrics.released();
+			if (holding.get() != null) {
+				holding.remove();
+				disk.release();
+			}
+			metrics.latency(op, start);
+		}
+	}
 	
 	
     public static void main(String args[]) {
@@ -404,7 +923,27 @@ public class Server extends UnicastRemoteObject implements RemoteFile {
 			// root directory setup
             server.rootdir = args[1] + "/";
             server.root = new File(server.rootdir).getCanonicalFile();
-            System.err.println("Server ready, rootdir:" + args[1]);
+
+            // read replicas: any host:port after rootdir
+            List<String> replicas = new ArrayList<String>();
+            for (int i = 2; i < args.length; i++) replicas.addAll(ShardRing.parse(args[i]));
+            if (!replicas.isEmpty()) server.replicator = new Replicator(server.rootdir, replicas);
+            System.err.println("Server ready, rootdir:" + args[1] + " replicas:" + replicas);
+
+            // log load and replication lag periodically, write metrics snapshot
+            server.metrics.register();
+            final Server stats_server = server;
+            Thread stats = new Thread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        try { Thread.sleep(STATS_PERIOD); } catch (InterruptedException e) { return; }
+                        System.err.print(stats_server.stats());
+                        if (METRICS_FILE != null) stats_server.metrics.writeSnapshot(METRICS_FILE);
+                    }
+                }
+            });
+            stats.setDaemon(true);
+            stats.start();
         } catch (Exception e) {
             System.err.println("Server exception: " + e.toString());
             e.printStackTrace();
@@ -0,0 +1,182 @@
+/**
+ * This is a class for one proxy-server connection.
+ * It keeps the RPC stub together with the chunk sizer measured on that connection.
+ *
+ * A primary connection also knows its read replicas. Replicas are connected lazily,
+ * reads go to the least loaded replica holding the wanted version.
+ *
+ * Concurrent opens are coalesced into batches by an OpenBatcher.
+ *
+ * Author: Yuqi Liu
+ */
+
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ServerConn {
+	public final String endpoint;       // host:port
+	public final RemoteFile server;     // server RPC interface object
+	public final ChunkSizer sizer;      // adaptive chunk size of this connection
+	public final AtomicInteger inflight = new AtomicInteger();  // calls in progress from this proxy
+	public final AtomicLong served = new AtomicLong();          // read calls served
+	public final AtomicLong bytes_down = new AtomicLong();      // bytes fetched from this server
+	public final AtomicLong bytes_up = new AtomicLong();        // bytes written back to this server
+	public volatile int load = 0;                               // last load reported by server
+	public final OpenBatcher batcher = new OpenBatcher(this);   // coalesces concurrent opens
+
+	private List<String> replicas = new ArrayList<String>();    // replica endpoints
+	private Map<String, ServerConn> replica_conns = new ConcurrentHashMap<String, ServerConn>();
+
+	public ServerConn(String endpoint, RemoteFile server) {
+		this.endpoint = endpoint;
+		this.server = server;
+		this.sizer = new ChunkSizer();
+	}
+
+	/**
+	 * Look up a server stub in RMI registry, negotiate chunk size and get replicas
+	 * @param endpoint host:port of server registry
+	 * @return new connection
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 * @throws MalformedURLException
+	 */
+	public static ServerConn connect(String endpoint)
+			throws RemoteException, NotBoundException, MalformedURLException {
+		RemoteFile server = (RemoteFile) Naming.lookup("//" + endpoint + "/RemoteFile");
+		ServerConn conn = new ServerConn(endpoint, server);
+		conn.sizer.negotiate(server);
+		conn.replicas = Arrays.asList(server.replicas());
+		return conn;
+	}
+
+	/**
+	 * If this server has read replicas
+	 * @return true if any replica configured
+	 */
+	public boolean hasReplicas() { return !replicas.isEmpty(); }
+
+	/**
+	 * Pick the least loaded replica among holders of a version
+	 * @param holders: replica endpoints holding the version, may be null
+	 * @return replica connection, null if no holder reachable
+	 */
+	public ServerConn pickReplica(String[] holders) {
+		if (holders == null) return null;
+		ServerConn best = null;
+		for (String endpoint : holders) {
+			if (!replicas.contains(endpoint)) continue;
+			ServerConn conn = replica(endpoint);
+			if (conn == null) continue;
+			if (best == null || conn.score() < best.score()) best = conn;
+		}
+		return best;
+	}
+
+	/**
+	 * Open a file, batched with concurrent opens unless batching is disabled
+	 * @param path: mapped file path
+	 * @param option: 1-CREATE, 2-CREATE NEW 3-READ 4- WRITE
+	 * @param version: current version in cache
+	 * @param inline: maximum data bytes returned with a new version
+	 * @return FileData from server
+	 * @throws RemoteException
+	 */
+	public FileData open(String path, int option, long version, int inline) throws RemoteException {
+		if (OpenBatcher.ENABLED) return batcher.open(path, option, version, inline);
+		long start = System.nanoTime();
+		FileData file = server.open(path, option, version, inline);
+		if (file != null && file.data != null) {
+			sizer.sample(file.data.length, System.nanoTime() - start);
+			bytes_down.addAndGet(file.data.length);
+		}
+		return file;
+	}
+
+	/**
+	 * Read one chunk, timing the call and recording load reported by server
+	 * @param path: mapped file path
+	 * @param offset: file pointer
+	 * @return FileReadData from server
+	 * @throws RemoteException
+	 */
+	public FileReadData read(String path, long offset) throws RemoteException {
+		return read(path, offset, sizer.chunk());
+	}
+
+	/**
+	 * Read up to len bytes, see read(path, offset)
+	 * @param path: mapped file path
+	 * @param offset: file pointer
+	 * @param len: maximum bytes to read
+	 * @return FileReadData from server
+	 * @throws RemoteException
+	 */
+	public FileReadData read(String path, long offset, int len) throws RemoteException {
+		inflight.incrementAndGet();
+		long start = System.nanoTime();
+		try {
+			FileReadData data = server.read(path, offset, len);
+			if (data != null) {
+				sizer.sample(data.size, System.nanoTime() - start);
+				load = data.load;
+				served.incrementAndGet();
+				bytes_down.addAndGet(Math.max(0, data.size));
+			}
+			return data;
+		} finally {
+			inflight.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Bytes fetched from this server and its replicas
+	 * @return bytes
+	 */
+	public long bytesDown() {
+		long result = bytes_down.get();
+		for (ServerConn conn : replica_conns.values()) result += conn.bytes_down.get();
+		return result;
+	}
+
+	/**
+	 * Load estimation: server reported load plus calls from this proxy
+	 * @return load score, lower is better
+	 */
+	private int score() { return load + inflight.get(); }
+
+	/**
+	 * Get a replica connection, connect lazily
+	 * @param endpoint: replica host:port
+	 * @return replica connection, null if cannot connect
+	 */
+	private ServerConn replica(String endpoint) {
+		ServerConn conn = replica_conns.get(endpoint);
+		if (conn != null) return conn;
+		try {
+			RemoteFile stub = (RemoteFile) Naming.lookup("//" + endpoint + "/RemoteFile");
+			conn = new ServerConn(endpoint, stub);
+			conn.sizer.negotiate(stub);
+			replica_conns.put(endpoint, conn);
+			return conn;
+		} catch (Exception e) {
+			System.err.println("Connect replica " + endpoint + " failed: " + e.toString());
+			return null;
+		}
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("[" + endpoint + " " + sizer.toString() + " LOAD:" + load + " SERVED:" + served.get() + " " + batcher.toString() + "]");
+		for (ServerConn conn : replica_conns.values()) {
+			sb.append(" replica" + conn.toString());
+		}
+		return sb.toString();
+	}
+}
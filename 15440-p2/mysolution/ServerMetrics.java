@@ -0,0 +1,284 @@
+/**
+ * This is a class for server instrumentation.
+ *
+ * For every operation it keeps a latency histogram, time waiting for a disk permit,
+ * time waiting for the path lock and time holding it. Histograms have power of two
+ * buckets in microseconds and are updated with atomic adds only, so they can stay on.
+ * Bytes in and out are counted, and the hottest paths are tracked with lock-free
+ * per-path counters. They are trimmed to the TOPK * 8 largest when snapshots are taken
+ * or when there are more than TOPK * 64.
+ *
+ * Exposed through JMX (ServerMetricsMBean) and a snapshot file written periodically
+ * if -Dserver.metricsFile is set.
+ *
+ * Author: Yuqi Liu
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+public class ServerMetrics implements ServerMetricsMBean {
+	public static final int OPEN = 0;      // operation index
+	public static final int READ = 1;
+	public static final int WRITE = 2;
+	public static final int CLOSE = 3;
+	public static final int UNLINK = 4;
+	public static final int LIST = 5;
+	public static final String[] OPS = { "open", "read", "write", "close", "unlink", "list" };
+	private static final int TOPK = Integer.getInteger("server.topK", 10);   // hot paths reported
+	private static final int KEEP = TOPK * 8;                                // path counters kept by a trim
+	private static final int CAP = TOPK * 64;                                // path counters before a trim
+
+	private final Histogram[] latency = new Histogram[OPS.length];    // whole call
+	private final Histogram[] permit = new Histogram[OPS.length];     // waiting for disk permit
+	private final Histogram[] lock_wait = new Histogram[OPS.length];  // waiting for path lock
+	private final Histogram[] lock_hold = new Histogram[OPS.length];  // holding path lock
+	private final AtomicLong bytes_in = new AtomicLong();
+	private final AtomicLong bytes_out = new AtomicLong();
+	private final ThreadLocal<long[]> locked = new ThreadLocal<long[]>();  // op and time path lock acquired
+
+	// path - access count since it was last trimmed
+	private final ConcurrentHashMap<String, LongAdder> hot = new ConcurrentHashMap<String, LongAdder>();
+	private final AtomicBoolean trimming = new AtomicBoolean();   // a thread is trimming counters
+	private volatile long error = 0;                              // largest count trimmed, bounds undercount
+
+	public ServerMetrics() {
+		for (int i = 0; i < OPS.length; i++) {
+			latency[i] = new Histogram();
+			permit[i] = new Histogram();
+			lock_wait[i] = new Histogram();
+			lock_hold[i] = new Histogram();
+		}
+	}
+
+	/**
+	 * Register in platform MBean server
+	 */
+	public void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("p2:type=ServerMetrics"));
+		} catch (Exception e) {
+			System.err.println("Register metrics MBean failed: " + e.toString());
+		}
+	}
+
+	/**
+	 * Record latency of a call
+	 * @param op: operation index
+	 * @param start: call start in System.nanoTime()
+	 */
+	public void latency(int op, long start) { latency[op].add(System.nanoTime() - start); }
+
+	/**
+	 * Record time waiting for a disk permit
+	 * @param op: operation index
+	 * @param nanos: wait time
+	 */
+	public void permit(int op, long nanos) { permit[op].add(nanos); }
+
+	/**
+	 * Record a path lock acquired by this thread
+	 * @param op: operation index
+	 * @param start: time lock() was called
+	 */
+	public void locked(int op, long start) {
+		long now = System.nanoTime();
+		lock_wait[op].add(now - start);
+		locked.set(new long[] { op, now });
+	}
+
+	/**
+	 * Operation of this thread ends, record how long it held its path lock
+	 */
+	public void released() {
+		long[] state = locked.get();
+		if (state == null) return;
+		locked.remove();
+		lock_hold[(int) state[0]].add(System.nanoTime() - state[1]);
+	}
+
+	public void bytesIn(long bytes) { bytes_in.addAndGet(bytes); }
+
+	public void bytesOut(long bytes) { bytes_out.addAndGet(bytes); }
+
+	/**
+	 * Count an access to a path
+	 * @param path: mapped file path
+	 */
+	public void hit(String path) {
+		LongAdder counter = hot.get(path);
+		if (counter == null) {
+			LongAdder created = new LongAdder();
+			counter = hot.putIfAbsent(path, created);
+			if (counter == null) counter = created;
+			if (hot.size() > CAP) trim();
+		}
+		counter.increment();
+	}
+
+	/**
+	 * Path counters, largest first
+	 * @return path - count entries
+	 */
+	private List<Map.Entry<String, Long>> counts() {
+		List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>();
+		for (Map.Entry<String, LongAdder> entry : hot.entrySet()) {
+			entries.add(new AbstractMap.SimpleEntry<String, Long>(entry.getKey(), entry.getValue().sum()));
+		}
+		Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+			public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+				return Long.compare(b.getValue(), a.getValue());
+			}
+		});
+		return entries;
+	}
+
+	/**
+	 * Keep the KEEP largest path counters, one thread at a time, others skip
+	 */
+	private void trim() {
+		if (!trimming.compareAndSet(false, true)) return;
+		try {
+			List<Map.Entry<String, Long>> entries = counts();
+			for (int i = KEEP; i < entries.size(); i++) {
+				hot.remove(entries.get(i).getKey());
+				error = Math.max(error, entries.get(i).getValue());
+			}
+		} finally {
+			trimming.set(false);
+		}
+	}
+
+	public String[] getHotPaths() {
+		trim();
+		List<Map.Entry<String, Long>> entries = counts();
+		String[] result = new String[Math.min(TOPK, entries.size())];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = entries.get(i).getKey().replaceAll("%`%", "/") + " " + entries.get(i).getValue() + " (+-" + error + ")";
+		}
+		return result;
+	}
+
+	public long getBytesIn() { return bytes_in.get(); }
+
+	public long getBytesOut() { return bytes_out.get(); }
+
+	public long latency(String op, double percentile) {
+		int index = Arrays.asList(OPS).indexOf(op);
+		return index < 0 ? -1 : latency[index].percentile(percentile);
+	}
+
+	public void reset() {
+		for (int i = 0; i < OPS.length; i++) {
+			latency[i].reset();
+			permit[i].reset();
+			lock_wait[i].reset();
+			lock_hold[i].reset();
+		}
+		bytes_in.set(0);
+		bytes_out.set(0);
+		hot.clear();
+		error = 0;
+	}
+
+	public String getSnapshot() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("--Metrics at " + System.currentTimeMillis() + " BYTES IN: " + bytes_in.get()
+				+ " BYTES OUT: " + bytes_out.get() + "\n");
+		for (int i = 0; i < OPS.length; i++) {
+			if (latency[i].count() == 0) continue;
+			sb.append("[ " + OPS[i] + " : COUNT: " + latency[i].count()
+					+ " LATENCY(us) " + latency[i].toString()
+					+ " PERMIT WAIT(us) " + permit[i].toString()
+					+ " LOCK WAIT(us) " + lock_wait[i].toString()
+					+ " LOCK HOLD(us) " + lock_hold[i].toString() + "] \n");
+		}
+		sb.append("--Hot paths:\n");
+		for (String path : getHotPaths()) sb.append("  " + path + "\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Write snapshot to a file, replaced atomically
+	 * @param file: snapshot file path
+	 */
+	public void writeSnapshot(String file) {
+		File tmp = new File(file + ".tmp");
+		try {
+			FileWriter writer = new FileWriter(tmp);
+			try {
+				writer.write(getSnapshot());
+			} finally {
+				writer.close();
+			}
+			if (!tmp.renameTo(new File(file))) System.err.println("Write metrics snapshot failed: rename");
+		} catch (IOException e) {
+			System.err.println("Write metrics snapshot failed: " + e.getMessage());
+		}
+	}
+
+
+	/*
+	 * Histogram class, power of two buckets of microseconds
+	 */
+	static class Histogram {
+		private static final int BUCKETS = 40;   // bucket i holds [2^(i-1), 2^i) us
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();   // total in ns
+		private final AtomicLong max = new AtomicLong();   // max in ns
+
+		public void add(long nanos) {
+			if (nanos < 0) nanos = 0;
+			long us = nanos / 1000;
+			int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(us));
+			buckets.incrementAndGet(bucket);
+			count.incrementAndGet();
+			sum.addAndGet(nanos);
+			long crt;
+			while (nanos > (crt = max.get()) && !max.compareAndSet(crt, nanos)) {}
+		}
+
+		public long count() { return count.get(); }
+
+		/**
+		 * Upper bound of the bucket holding a percentile
+		 * @param percentile: 0 - 100
+		 * @return latency in us
+		 */
+		public long percentile(double percentile) {
+			long total = count.get();
+			if (total == 0) return 0;
+			long rank = (long) Math.ceil(total * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) return 1L << i;
+			}
+			return max.get() / 1000;
+		}
+
+		public void reset() {
+			for (int i = 0; i < BUCKETS; i++) buckets.set(i, 0);
+			count.set(0);
+			sum.set(0);
+			max.set(0);
+		}
+
+		public String toString() {
+			long total = count.get();
+			long mean = total == 0 ? 0 : sum.get() / total / 1000;
+			return "MEAN:" + mean + " P50:" + percentile(50) + " P99:" + percentile(99)
+					+ " P999:" + percentile(99.9) + " MAX:" + max.get() / 1000;
+		}
+	}
+}
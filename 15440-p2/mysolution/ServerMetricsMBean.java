@@ -0,0 +1,45 @@
+/**
+ * This is a JMX interface of server metrics.
+ * Registered as "p2:type=ServerMetrics" in the platform MBean server.
+ *
+ * Author: Yuqi Liu
+ */
+public interface ServerMetricsMBean {
+
+	/**
+	 * Get readable snapshot of all metrics
+	 * @return snapshot text, same as the snapshot file
+	 */
+	String getSnapshot();
+
+	/**
+	 * Get hottest paths with estimated access counts
+	 * @return "path count" of each hot path, hottest first
+	 */
+	String[] getHotPaths();
+
+	/**
+	 * Get bytes received from proxies
+	 * @return bytes
+	 */
+	long getBytesIn();
+
+	/**
+	 * Get bytes sent to proxies
+	 * @return bytes
+	 */
+	long getBytesOut();
+
+	/**
+	 * Get latency percentile of an operation
+	 * @param op: open, read, write, close, unlink or list
+	 * @param percentile: 0 - 100
+	 * @return latency upper bound in us, -1 if unknown operation
+	 */
+	long latency(String op, double percentile);
+
+	/**
+	 * Reset all metrics
+	 */
+	void reset();
+}
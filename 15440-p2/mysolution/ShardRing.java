@@ -0,0 +1,109 @@
+/**
+ * This is a class for consistent hashing of file paths onto servers.
+ *
+ * Every server endpoint is placed on the ring VNODES times (virtual nodes),
+ * a path belongs to the first virtual node clockwise from its hash.
+ * Adding or removing one server only moves about 1/N of the paths.
+ *
+ * Number of virtual nodes can be configured with -Dshard.vnodes.
+ *
+ * Author: Yuqi Liu
+ */
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+public class ShardRing {
+	private static final int VNODES = Integer.getInteger("shard.vnodes", 128);  // virtual nodes per server
+
+	private final List<String> endpoints;                            // servers, host:port
+	private final TreeMap<Long, String> ring = new TreeMap<Long, String>();  // hash - server pair
+
+	public ShardRing(List<String> endpoints) {
+		this.endpoints = Collections.unmodifiableList(new ArrayList<String>(endpoints));
+		for (String endpoint : this.endpoints) {
+			for (int i = 0; i < VNODES; i++) {
+				ring.put(hash(endpoint + "#" + i), endpoint);
+			}
+		}
+	}
+
+	/**
+	 * Get the server owning a path
+	 * @param path: mapped file path
+	 * @return server endpoint, null if ring is empty
+	 */
+	public String owner(String path) {
+		if (ring.isEmpty()) return null;
+		Map.Entry<Long, String> entry = ring.ceilingEntry(hash(path));
+		if (entry == null) entry = ring.firstEntry();
+		return entry.getValue();
+	}
+
+	/**
+	 * Get all servers on the ring
+	 * @return list of endpoints
+	 */
+	public List<String> endpoints() { return endpoints; }
+
+	/**
+	 * Parse a comma separated endpoint list
+	 * @param list: host:port,host:port...
+	 * @return list of endpoints
+	 */
+	public static List<String> parse(String list) {
+		List<String> result = new ArrayList<String>();
+		for (String endpoint : list.split(",")) {
+			endpoint = endpoint.trim();
+			if (endpoint.length() > 0 && !result.contains(endpoint)) result.add(endpoint);
+		}
+		return result;
+	}
+
+	/**
+	 * Load endpoints from a shard map file, one host:port per line, # for comments
+	 * @param file: shard map file path
+	 * @return list of endpoints
+	 * @throws IOException
+	 */
+	public static List<String> load(String file) throws IOException {
+		List<String> result = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) continue;
+				if (!result.contains(line)) result.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return result;
+	}
+
+	/**
+	 * 64 bit hash from the first 8 bytes of MD5
+	 * @param key
+	 * @return hash value
+	 */
+	private static long hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+			long h = 0;
+			for (int i = 0; i < 8; i++) h = (h << 8) | (digest[i] & 0xff);
+			return h;
+		} catch (NoSuchAlgorithmException e) {
+			return key.hashCode();
+		}
+	}
+
+	public String toString() {
+		return "--Shards:" + endpoints.toString() + " VNODES:" + VNODES;
+	}
+}
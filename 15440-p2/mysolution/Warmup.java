@@ -0,0 +1,145 @@
+/**
+ * This is a class for bulk warm-up and pinning of proxy cache.
+ *
+ * Files are fetched by a thread pool, each one with a normal open and close,
+ * so the cache gets the current server version through the usual path.
+ * Pinned files stay in cache, whatever version, until released.
+ *
+ * Used in three ways:
+ *   -Dproxy.admin=<port>: proxy binds "ProxyAdmin" in a local registry on that port
+ *   -Dproxy.warmup=<manifest>: proxy warms files listed in manifest at start up,
+ *                              pinned if -Dproxy.warmupPin=true
+ *   java Warmup <port> warm|pin|release|status [<manifest>]: command line client
+ * Manifest has one file path per line, # for comments.
+ * Number of fetching threads can be configured with -Dproxy.warmupThreads.
+ *
+ * Author: Yuqi Liu
+ */
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Warmup extends UnicastRemoteObject implements ProxyAdmin {
+	private static final long serialVersionUID = 1L;
+	private static final int THREADS = Integer.getInteger("proxy.warmupThreads", 8);  // parallel fetches
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+	public Warmup() throws RemoteException {
+		super(0);
+	}
+
+	/**
+	 * Fetch files into cache in parallel
+	 * @param paths: file paths
+	 * @param pin: true to pin them
+	 * @return number of files fetched
+	 */
+	public int warm(String[] paths, final boolean pin) {
+		long start = System.currentTimeMillis();
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		for (final String path : paths) {
+			tasks.add(new Callable<Integer>() {
+				public Integer call() {
+					int state = Proxy.warm(path, pin);
+					if (state < 0) System.err.println("Warm up " + path + " failed: " + state);
+					return state;
+				}
+			});
+		}
+
+		int done = 0;
+		try {
+			for (Future<Integer> result : executor.invokeAll(tasks)) {
+				if (result.get() == 0) done ++;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.printStackTrace(System.err);
+		}
+		System.err.println("Warm up " + done + "/" + paths.length + " files in "
+				+ (System.currentTimeMillis() - start) + "ms" + (pin ? " pinned" : ""));
+		return done;
+	}
+
+	/**
+	 * Release pinned files
+	 * @param paths: file paths
+	 * @return number of files released
+	 */
+	public int release(String[] paths) {
+		int done = 0;
+		for (String path : paths) {
+			if (Proxy.release(path)) done ++;
+		}
+		return done;
+	}
+
+	/**
+	 * Get cache state
+	 * @return readable cache state
+	 */
+	public String status() {
+		return Proxy.status();
+	}
+
+	/**
+	 * Load file paths from a warm-up manifest, one path per line, # for comments
+	 * @param file: manifest file path
+	 * @return file paths
+	 * @throws IOException
+	 */
+	public static String[] load(String file) throws IOException {
+		List<String> result = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) continue;
+				result.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
+	/**
+	 * Bind admin service in a local registry
+	 * @param port: registry port
+	 * @return admin service
+	 * @throws RemoteException
+	 */
+	public static Warmup bind(int port) throws RemoteException {
+		Warmup admin = new Warmup();
+		LocateRegistry.createRegistry(port).rebind("ProxyAdmin", admin);
+		return admin;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: java Warmup <port> warm|pin|release|status [<manifest>]");
+			return;
+		}
+		ProxyAdmin admin = (ProxyAdmin) Naming.lookup("//127.0.0.1:" + args[0] + "/ProxyAdmin");
+		String[] paths = args.length > 2 ? load(args[2]) : new String[0];
+		if (args[1].equals("warm")) {
+			System.out.println("warmed " + admin.warm(paths, false) + "/" + paths.length);
+		} else if (args[1].equals("pin")) {
+			System.out.println("pinned " + admin.warm(paths, true) + "/" + paths.length);
+		} else if (args[1].equals("release")) {
+			System.out.println("released " + admin.release(paths) + "/" + paths.length);
+		} else {
+			System.out.println(admin.status());
+		}
+	}
+}
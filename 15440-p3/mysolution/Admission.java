@@ -0,0 +1,82 @@
+/*
+ * This is a program for deadline-aware admission control of one VM.
+ * A request is admitted only if it can finish before its deadline,
+ * estimated from its queue position and measured service time,
+ * and dropped when taken if it can no longer finish in time.
+ * Author: Yuqi Liu
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Admission {
+	private static final double SMOOTH = 0.2;    // service time smoothing
+
+	private volatile double service_ms = 0;      // service time per request, 0 until measured
+	private volatile int concurrency = 1;        // requests served at once
+
+	/* Metrics */
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();   // dropped on arrival
+	private final AtomicLong late = new AtomicLong();       // dropped when taken
+	private final AtomicLong good = new AtomicLong();       // finished before deadline
+	private final AtomicLong missed = new AtomicLong();     // finished after deadline
+
+	/**
+	 * Decide on an arriving request
+	 * @param q request
+	 * @param ahead requests queued before it
+	 * @param now current time in ms
+	 * @return true if it can finish in time
+	 */
+	public boolean admit(QueuedRequest q, int ahead, long now) {
+		boolean ok = now + (ahead / concurrency + 1) * service_ms <= q.deadline;
+		if (ok) admitted.incrementAndGet();
+		else rejected.incrementAndGet();
+		return ok;
+	}
+
+	/**
+	 * Check a request about to be served
+	 * @param q request
+	 * @param now current time in ms
+	 * @return true if it can no longer finish in time
+	 */
+	public boolean late(QueuedRequest q, long now) {
+		boolean result = now + service_ms > q.deadline;
+		if (result) late.incrementAndGet();
+		return result;
+	}
+
+	/**
+	 * Record a served request, workers of a VM call it concurrently
+	 * @param q request
+	 * @param start time service started
+	 * @param end time service ended
+	 */
+	public synchronized void served(QueuedRequest q, long start, long end) {
+		service_ms = service_ms == 0 ? end - start : SMOOTH * (end - start) + (1 - SMOOTH) * service_ms;
+		if (end <= q.deadline) good.incrementAndGet();
+		else missed.incrementAndGet();
+	}
+
+	/**
+	 * Set the number of requests served at once
+	 * @param concurrency at least 1
+	 */
+	public void setConcurrency(int concurrency) {
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	/**
+	 * Measured service time
+	 * @return ms per request
+	 */
+	public double serviceTime() {
+		return service_ms;
+	}
+
+	public String toString() {
+		return String.format("Admission[service:%.0fms admitted:%d rejected:%d late:%d goodput:%d missed:%d]",
+				service_ms, admitted.get(), rejected.get(), late.get(), good.get(), missed.get());
+	}
+}
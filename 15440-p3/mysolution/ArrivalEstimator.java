@@ -0,0 +1,96 @@
+/*
+ * This is a program for estimating request arrival rate.
+ * Arrivals are counted in fixed periods, each period's rate updates
+ * an EWMA level and a Holt trend, so the rate can be forecast ahead.
+ * Author: Yuqi Liu
+ */
+
+public class ArrivalEstimator {
+	private final long period;     // sample period in ms
+	private final double alpha;    // level smoothing
+	private final double beta;     // trend smoothing
+
+	private double level = -1;     // smoothed rate in requests per second, -1 before first period
+	private double trend = 0;      // rate change per period
+	private long start = 0;        // start of current period
+	private int count = 0;         // arrivals in current period
+
+	/**
+	 * Estimator constructor
+	 * @param period sample period in ms
+	 * @param alpha level smoothing, 0 to 1
+	 * @param beta trend smoothing, 0 to 1
+	 */
+	public ArrivalEstimator(long period, double alpha, double beta) {
+		this.period = period;
+		this.alpha = alpha;
+		this.beta = beta;
+	}
+
+	/**
+	 * Record one arrival
+	 * @param now current time in ms
+	 */
+	public synchronized void arrive(long now) {
+		arrive(now, 1);
+	}
+
+	/**
+	 * Record arrivals reported together
+	 * @param now current time in ms
+	 * @param n number of arrivals
+	 */
+	public synchronized void arrive(long now, int n) {
+		roll(now);
+		count += n;
+	}
+
+	/**
+	 * Smoothed arrival rate
+	 * @param now current time in ms
+	 * @return requests per second
+	 */
+	public synchronized double rate(long now) {
+		roll(now);
+		return Math.max(0, level);
+	}
+
+	/**
+	 * Forecast arrival rate ahead of now
+	 * @param now current time in ms
+	 * @param horizon forecast distance in ms
+	 * @return requests per second, never negative
+	 */
+	public synchronized double forecast(long now, long horizon) {
+		roll(now);
+		if (level < 0) return 0;
+		return Math.max(0, level + trend * horizon / period);
+	}
+
+	/**
+	 * Close finished periods, empty ones count as zero rate
+	 * @param now current time in ms
+	 */
+	private void roll(long now) {
+		if (start == 0) {
+			start = now;
+			return;
+		}
+		while (now - start >= period) {
+			double observed = count * 1000.0 / period;
+			if (level < 0) {
+				level = observed;
+			} else {
+				double last = level;
+				level = alpha * observed + (1 - alpha) * (level + trend);
+				trend = beta * (level - last) + (1 - beta) * trend;
+			}
+			count = 0;
+			start += period;
+		}
+	}
+
+	public synchronized String toString() {
+		return String.format("rate:%.2f/s trend:%.3f", Math.max(0, level), trend);
+	}
+}
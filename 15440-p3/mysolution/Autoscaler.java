@@ -0,0 +1,129 @@
+/*
+ * This is a program for the master's scaling decisions.
+ * It keeps arrival rate and service time estimates, asks a policy for
+ * target VM counts, starts VMs right away and stops them after
+ * the target stays lower for a while.
+ * Policy is chosen by -Dscale.policy: predictive (default) or threshold.
+ * Author: Yuqi Liu
+ */
+
+public class Autoscaler {
+	private static final String POLICY = System.getProperty("scale.policy", "predictive");
+	private static final long PERIOD = Long.getLong("scale.period", Dispatcher.REFRESH);   // arrival sample period in ms
+	private static final long IN_HOLD = Long.getLong("scale.inHold", 5000);     // lower target time before scale in
+	private static final double SMOOTH = 0.3;                                  // service time smoothing
+
+	public final ArrivalEstimator arrivals = new ArrivalEstimator(PERIOD, 0.5, 0.2);
+	private final ScalingPolicy policy;
+	private final VMConnect master;
+	private volatile double front_ms = Server.FRONTEND_PROCESS_TIME;
+	private volatile double middle_ms = Server.initial_weight * Cloud.CLIENT_BROWSE_TIMEOUT;
+	private volatile double middle_workers = Server.WORKERS;   // concurrent workers per middle tier VM
+	private long[] lower_since = new long[2];   // since when each tier's target is lower, 0 if not
+
+	/**
+	 * Autoscaler constructor
+	 * @param master master RMI object, used to scale in
+	 */
+	public Autoscaler(VMConnect master) {
+		this.master = master;
+		this.policy = POLICY.equals("threshold") ? new ThresholdPolicy() : new PredictivePolicy();
+	}
+
+	/**
+	 * Record one request arrival
+	 */
+	public void arrive() {
+		arrive(1);
+	}
+
+	/**
+	 * Record request arrivals reported by a frontend
+	 * @param n number of requests
+	 */
+	public void arrive(int n) {
+		arrivals.arrive(System.currentTimeMillis(), n);
+	}
+
+	/**
+	 * Record a service time measured by a tier
+	 * @param type FRONTEND or MIDDLE_TIER
+	 * @param ms service time per request
+	 */
+	public synchronized void serviced(int type, double ms) {
+		if (type == Server.FRONTEND) front_ms = SMOOTH * ms + (1 - SMOOTH) * front_ms;
+		else if (type == Server.MIDDLE_TIER) middle_ms = SMOOTH * ms + (1 - SMOOTH) * middle_ms;
+	}
+
+	/**
+	 * Record worker count reported by a middle tier VM
+	 * @param workers concurrent workers of the VM
+	 */
+	public synchronized void workers(int workers) {
+		middle_workers = SMOOTH * Math.max(1, workers) + (1 - SMOOTH) * middle_workers;
+	}
+
+	/**
+	 * Service time of a tier
+	 * @param type FRONTEND or MIDDLE_TIER
+	 * @return ms per request
+	 */
+	public double serviceTime(int type) {
+		return type == Server.FRONTEND ? front_ms : middle_ms;
+	}
+
+	/**
+	 * Make a scaling decision
+	 * @param front frontend VMs, master included
+	 * @param middle middle tier VMs
+	 * @param front_queue requests waiting for frontends
+	 * @param queue requests waiting for middle tier
+	 */
+	public void tick(int front, int middle, int front_queue, int queue) {
+		ScalingPolicy.Load load = new ScalingPolicy.Load();
+		load.now = System.currentTimeMillis();
+		load.front = front;
+		load.middle = middle;
+		load.frontQueue = front_queue;
+		load.queue = queue;
+		load.frontMs = front_ms;
+		load.middleMs = middle_ms;
+		load.middleWorkers = middle_workers;
+		load.arrivals = arrivals;
+		int[] targets = policy.targets(load);
+		apply(Server.FRONTEND, front, targets[0], load.now);
+		apply(Server.MIDDLE_TIER, middle, targets[1], load.now);
+	}
+
+	/**
+	 * Move one tier towards its target
+	 * @param type FRONTEND or MIDDLE_TIER
+	 * @param current current VMs
+	 * @param target target VMs
+	 * @param now current time
+	 */
+	private void apply(int type, int current, int target, long now) {
+		if (target > current) {
+			lower_since[type] = 0;
+			for (int i = current; i < target; i ++) Server.scaleOut(Server.SL, type);
+		} else if (target < current) {
+			if (lower_since[type] == 0) lower_since[type] = now;
+			if (now - lower_since[type] < IN_HOLD) return;
+			lower_since[type] = now;
+			int victim = Server.lastVM(type);
+			if (victim == -1) return;
+			try {
+				if (type == Server.FRONTEND) master.scaleIn_frontend(victim);
+				else master.scaleIn_middle(victim);
+			} catch (java.rmi.RemoteException e) {
+				e.printStackTrace();
+			}
+		} else {
+			lower_since[type] = 0;
+		}
+	}
+
+	public String toString() {
+		return "Scaler[" + POLICY + " " + arrivals + String.format(" front:%.0fms middle:%.0fms x%.1f]", front_ms, middle_ms, middle_workers);
+	}
+}
@@ -0,0 +1,16 @@
+/*
+ * This is a remote interface for one partition of the DB cache.
+ * Author: Yuqi Liu
+ */
+
+import java.rmi.RemoteException;
+
+public interface CacheOps extends Cloud.DatabaseOps {
+	/**
+	 * Drop keys changed by a write handled by another partition
+	 * @param key changed key, or prefix of changed keys
+	 * @param prefix true if key is a prefix
+	 * @throws RemoteException
+	 */
+	public void invalidate(String key, boolean prefix) throws RemoteException;
+}
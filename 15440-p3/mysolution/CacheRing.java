@@ -0,0 +1,69 @@
+/*
+ * This is a consistent hash ring of cache VMs.
+ * Every cache VM is placed on the ring VNODES times, a key belongs to the
+ * first virtual node clockwise from its hash, so adding or removing one
+ * cache VM only moves about 1/N of the keys.
+ * Author: Yuqi Liu
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class CacheRing {
+	private static final int VNODES = Integer.getInteger("cache.vnodes", 64);   // virtual nodes per cache VM
+
+	private final int[] ids;                                                    // cache VM ids
+	private final TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();   // hash - cache VM pair
+
+	public CacheRing(int[] ids) {
+		this.ids = ids.clone();
+		Arrays.sort(this.ids);
+		for (int id : this.ids) {
+			for (int i = 0; i < VNODES; i ++) ring.put(hash(id + "#" + i), id);
+		}
+	}
+
+	/**
+	 * Get the cache VM owning a key
+	 * @param key key
+	 * @return VM id, -1 if ring is empty
+	 */
+	public int owner(String key) {
+		if (ring.isEmpty()) return -1;
+		Map.Entry<Long, Integer> entry = ring.ceilingEntry(hash(key));
+		if (entry == null) entry = ring.firstEntry();
+		return entry.getValue();
+	}
+
+	/**
+	 * Get all cache VMs
+	 * @return VM ids, sorted
+	 */
+	public int[] ids() {
+		return ids;
+	}
+
+	/**
+	 * 64 bit hash from the first 8 bytes of MD5
+	 * @param key
+	 * @return hash value
+	 */
+	private static long hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+			long h = 0;
+			for (int i = 0; i < 8; i ++) h = (h << 8) | (digest[i] & 0xff);
+			return h;
+		} catch (NoSuchAlgorithmException e) {
+			return key.hashCode();
+		}
+	}
+
+	public String toString() {
+		return "CacheRing" + Arrays.toString(ids);
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * This is a controller for the number of workers of a middle tier VM.
+ * Once per period it compares latency per request with the lowest of the
+ * last WINDOW periods: while latency stays within TOLERANCE of it and requests
+ * are waiting, the limit grows by one, when latency rises beyond it the limit
+ * shrinks in proportion. Every WINDOW periods the limit is halved for one period,
+ * so the window always holds a sample taken below the current load and the
+ * baseline cannot creep up with it.
+ * Author: Yuqi Liu
+ */
+
+public class ConcurrencyController {
+	private static final double TOLERANCE = 1.3;   // latency rise accepted before shrinking
+	private static final int WINDOW = 30;          // periods of latency kept, also the probe period
+
+	private final int max;                // upper limit
+	private double limit;                 // current limit
+	private final double[] window = new double[WINDOW];   // latency of recent periods, 0 if none
+	private double min_latency = 0;       // lowest latency in window, 0 before first sample
+	private int periods = 0;              // periods with samples
+	private double probed = 0;            // limit to restore after a probe, 0 if not probing
+
+	/**
+	 * Controller constructor
+	 * @param initial initial limit
+	 * @param max upper limit
+	 */
+	public ConcurrencyController(int initial, int max) {
+		this.max = Math.max(1, max);
+		this.limit = Math.max(1, Math.min(this.max, initial));
+	}
+
+	/**
+	 * Adjust the limit after a period
+	 * @param latency mean latency per request in the period, 0 if none served
+	 * @param waiting requests waiting at the end of the period
+	 * @return new limit
+	 */
+	public synchronized int update(double latency, int waiting) {
+		if (latency <= 0) return (int) limit;
+		window[periods ++ % WINDOW] = latency;
+		min_latency = 0;
+		for (double sample : window) {
+			if (sample > 0 && (min_latency == 0 || sample < min_latency)) min_latency = sample;
+		}
+
+		// probe period ended, its sample is in the window
+		if (probed > 0) {
+			limit = probed;
+			probed = 0;
+			return (int) limit;
+		}
+
+		double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * min_latency / latency));
+		limit = limit * gradient + (waiting > 0 && gradient == 1.0 ? 1 : 0);
+		limit = Math.max(1, Math.min(max, limit));
+		if (periods % WINDOW == 0 && limit >= 2) {
+			probed = limit;
+			limit = limit / 2;
+		}
+		return (int) limit;
+	}
+
+	public synchronized String toString() {
+		return String.format("Workers[limit:%.1f minLatency:%.0fms]", limit, min_latency);
+	}
+}
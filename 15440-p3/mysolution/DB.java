@@ -1,17 +1,67 @@
 /*
  * This is a program for Database cache.
+ * Replies are kept in a bounded KeyCache, writes invalidate the keys they change.
+ * Concurrent misses of one key share a single database fetch, and hot keys
+ * are fetched again in background shortly before they expire.
+ * Writes are published to near caches of middle tier VMs in order.
+ * One DB is one partition of the cache, on master or on a cache VM.
+ * Cache is tuned by -Dcache.capacity entries, -Dcache.ttl ms and cache
+ * metrics are printed every -Dcache.stats ms (0 to disable).
  * Author: Yuqi Liu
  */
 
+import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.*;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class DB extends UnicastRemoteObject implements Cloud.DatabaseOps  {
+public class DB extends UnicastRemoteObject implements CacheOps  {
 	private static final long serialVersionUID = 1L;
+	private static final int CAPACITY = Integer.getInteger("cache.capacity", 10000);   // maximum cached keys
+	private static final long TTL = Long.getLong("cache.ttl", 30000);                  // entry lifetime in ms
+	private static final long STATS = Long.getLong("cache.stats", 10000);              // metrics print period
+	private static final double REFRESH = Double.parseDouble(System.getProperty("cache.refreshAhead", "0.2"));  // last TTL fraction, 0 disables
+	private static final int HOT = Integer.getInteger("cache.hot", 4);                 // accesses to refresh ahead
+
 	// cache in memory
-	private Map<String, String> map = new ConcurrentHashMap<String, String>();
+	private final KeyCache cache = new KeyCache(CAPACITY, TTL);
+	// key - database fetch in progress
+	private final ConcurrentHashMap<String, FutureTask<String>> inflight = new ConcurrentHashMap<String, FutureTask<String>>();
+	private final Set<String> refreshing = ConcurrentHashMap.newKeySet();   // keys with a refresh queued or running
+	// background refresh of hot keys
+	private final ExecutorService refresher = Executors.newFixedThreadPool(2, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "cache-refresh");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	// middle tier VM id - VM RMI object, receiving invalidations for its near cache
+	private final Map<Integer, VMConnect> subscribers = new ConcurrentHashMap<Integer, VMConnect>();
+	private final VMConnect master;    // master RMI object, knows middle tier VMs
+	private final int port;            // RMI registry port
+	private long refreshed = 0;        // last subscriber reload time
+	// sends invalidations one after another, keeping write order
+	private final ExecutorService notifier = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "cache-invalidate");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private final AtomicLong fetches = new AtomicLong();     // database gets
+	private final AtomicLong coalesced = new AtomicLong();   // misses served by another caller's fetch
+	private final AtomicLong refreshes = new AtomicLong();   // refresh-ahead fetches
 
 	// SL object
 	private static ServerLib SL;
@@ -23,13 +73,31 @@ public class DB extends UnicastRemoteObject implements Cloud.DatabaseOps  {
 	 * Cache constructor
 	 * @param host  host of RMI
 	 * @param str_port  port of RMI
+	 * @param master master RMI object
 	 * @throws RemoteException
 	 */
-	protected DB(String host, String str_port) throws RemoteException {
+	protected DB(String host, String str_port, VMConnect master) throws RemoteException {
 		super();
-		int port =  Integer.parseInt(str_port);
+		this.master = master;
+		this.port =  Integer.parseInt(str_port);
 		SL = new ServerLib(host, port);
 		database = SL.getDB();
+		if (STATS > 0) {
+			Thread stats = new Thread() {
+				public void run() {
+					while (true) {
+						try {
+							Thread.sleep(STATS);
+						} catch (InterruptedException e) {
+							return;
+						}
+						System.out.println(stats());
+					}
+				}
+			};
+			stats.setDaemon(true);
+			stats.start();
+		}
 	}
 
 	/**
@@ -39,15 +107,65 @@ public class DB extends UnicastRemoteObject implements Cloud.DatabaseOps  {
 	 * @throws RemoteException
 	 */
 	@Override
-	public String get(String key) throws RemoteException {
-		if (map.containsKey(key)) return map.get(key);
-		String value = database.get(key);
-		map.put(key, value);
-		return value;
+	public String get(final String key) throws RemoteException {
+		String value = cache.get(key);
+		if (value != null) {
+			// one refresh per key, claimed before it is queued
+			if (REFRESH > 0 && cache.refreshDue(key, REFRESH, HOT) && !inflight.containsKey(key) && refreshing.add(key)) {
+				refresher.execute(new Runnable() {
+					public void run() {
+						try {
+							refreshes.incrementAndGet();
+							fetch(key);
+						} finally {
+							refreshing.remove(key);
+						}
+					}
+				});
+			}
+			return value;
+		}
+		try {
+			return fetch(key).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted fetching " + key, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RemoteException) throw (RemoteException) e.getCause();
+			throw new RemoteException("Fetch " + key + " failed", e.getCause());
+		}
 	}
 
 	/**
-	 * Set a given request, pass to DB
+	 * Fetch a key from database into cache, joining a fetch already in progress
+	 * @param key request key
+	 * @return fetch, done when returned unless another caller runs it
+	 */
+	private FutureTask<String> fetch(final String key) {
+		FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+			public String call() throws RemoteException {
+				long since = cache.stamp(key);
+				String value = database.get(key);
+				fetches.incrementAndGet();
+				cache.put(key, value, since);
+				return value;
+			}
+		});
+		FutureTask<String> running = inflight.putIfAbsent(key, task);
+		if (running != null) {
+			coalesced.incrementAndGet();
+			return running;
+		}
+		try {
+			task.run();
+		} finally {
+			inflight.remove(key, task);
+		}
+		return task;
+	}
+
+	/**
+	 * Set a given request, pass to DB and invalidate the key
 	 * @param arg0
 	 * @param arg1
 	 * @param arg2
@@ -56,11 +174,16 @@ public class DB extends UnicastRemoteObject implements Cloud.DatabaseOps  {
 	 */
 	@Override
 	public boolean set(String arg0, String arg1, String arg2) throws RemoteException {
-		return database.set(arg0, arg1, arg2);
+		try {
+			return database.set(arg0, arg1, arg2);
+		} finally {
+			drop(arg0, false);
+			publish(arg0, false);
+		}
 	}
 
 	/**
-	 * Real transaction, pass to DB
+	 * Real transaction, pass to DB and invalidate all keys of the item
 	 * @param arg0
 	 * @param arg1
 	 * @param arg2
@@ -69,7 +192,95 @@ public class DB extends UnicastRemoteObject implements Cloud.DatabaseOps  {
 	 */
 	@Override
 	public boolean transaction(String arg0, float arg1, int arg2) throws RemoteException {
-		return database.transaction(arg0, arg1, arg2);
+		try {
+			return database.transaction(arg0, arg1, arg2);
+		} finally {
+			drop(arg0, true);
+			publish(arg0, true);
+		}
+	}
+
+	/**
+	 * Drop keys changed by a write handled by another partition.
+	 * Near caches are told by that partition.
+	 * @param key changed key, or prefix of changed keys
+	 * @param prefix true if key is a prefix
+	 * @throws RemoteException
+	 */
+	@Override
+	public void invalidate(String key, boolean prefix) throws RemoteException {
+		drop(key, prefix);
+	}
+
+	/**
+	 * Drop keys from cache and in-flight fetches,
+	 * later gets must not join a fetch started before the write
+	 * @param key changed key, or prefix of changed keys
+	 * @param prefix true if key is a prefix
+	 */
+	private void drop(String key, boolean prefix) {
+		if (prefix) {
+			Iterator<String> it = inflight.keySet().iterator();
+			while (it.hasNext()) {
+				if (it.next().startsWith(key)) it.remove();
+			}
+			cache.invalidatePrefix(key);
+		} else {
+			inflight.remove(key);
+			cache.invalidate(key);
+		}
+	}
+
+	/**
+	 * Reload middle tier VMs from master periodically, they receive invalidations
+	 */
+	private void refreshSubscribers() {
+		long now = System.currentTimeMillis();
+		if (now - refreshed < Dispatcher.REFRESH) return;
+		refreshed = now;
+		try {
+			Membership membership = master.membership(0);
+			Map<Integer, VMConnect> current = new ConcurrentHashMap<Integer, VMConnect>();
+			for (int id : membership.ids) {
+				VMConnect vm = subscribers.get(id);
+				if (vm == null) vm = (VMConnect) Naming.lookup("//localHost:" + port + "/VM_Connect_" + id);
+				current.put(id, vm);
+			}
+			subscribers.keySet().retainAll(current.keySet());
+			subscribers.putAll(current);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Tell all near caches a write happened, without waiting for them
+	 * @param key changed key, or prefix of changed keys
+	 * @param prefix true if key is a prefix
+	 */
+	private void publish(final String key, final boolean prefix) {
+		notifier.execute(new Runnable() {
+			public void run() {
+				refreshSubscribers();
+				for (Map.Entry<Integer, VMConnect> entry : subscribers.entrySet()) {
+					try {
+						entry.getValue().invalidate(key, prefix);
+					} catch (RemoteException e) {
+						// VM is gone, its near cache with it
+						subscribers.remove(entry.getKey());
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Cache metrics
+	 * @return hit ratio, size, evictions, invalidations and database fetches
+	 */
+	public String stats() {
+		return cache.toString() + " fetches:" + fetches.get() + " coalesced:" + coalesced.get()
+				+ " refreshes:" + refreshes.get();
 	}
 
 }
@@ -0,0 +1,157 @@
+/*
+ * This is a program for dispatching requests to middle tier queues.
+ * A request goes to the shorter queue of two random middle tier VMs,
+ * using queue lengths from master's membership and from earlier pushes.
+ * Middle tier VMs use it as well to find the longest peer queue to steal from.
+ * Author: Yuqi Liu
+ */
+
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Dispatcher {
+	public static final int REFRESH = 1000;   // membership refresh period in ms
+
+	private final VMConnect master;           // master RMI object
+	private final int port;                   // RMI registry port
+	private final Random random = new Random();
+	private final Map<Integer, VMConnect> stubs = new ConcurrentHashMap<Integer, VMConnect>();
+	private final Map<Integer, Integer> depths = new ConcurrentHashMap<Integer, Integer>();
+	private volatile int[] ids = new int[0];  // known middle tier VMs
+	private long refreshed = 0;               // last refresh time
+	private final AtomicInteger dispatched = new AtomicInteger();   // requests dispatched since last refresh
+
+	/**
+	 * Dispatcher constructor
+	 * @param master master RMI object
+	 * @param port RMI registry port
+	 */
+	public Dispatcher(VMConnect master, int port) {
+		this.master = master;
+		this.port = port;
+	}
+
+	/**
+	 * Push a request to a middle tier VM, the master keeps it if none is reachable
+	 * @param r request with deadline
+	 * @throws RemoteException
+	 */
+	public void dispatch(QueuedRequest r) throws RemoteException {
+		dispatched.incrementAndGet();
+		refresh(false);
+		for (int attempt = 0; attempt < 2; attempt ++) {
+			int vm = choose();
+			if (vm == -1) break;
+			VMConnect stub = stub(vm);
+			if (stub == null) continue;
+			try {
+				depths.put(vm, stub.offer(r));
+				return;
+			} catch (RemoteException e) {
+				forget(vm);
+			}
+		}
+		master.offer(r);
+	}
+
+	/**
+	 * Steal requests from the longest known peer queue
+	 * @param self VM id of the thief
+	 * @param max maximum requests
+	 * @return requests stolen, empty if none
+	 */
+	public QueuedRequest[] steal(int self, int max) {
+		refresh(false);
+		int victim = -1;
+		int longest = 1;
+		for (int vm : ids) {
+			Integer depth = depths.get(vm);
+			if (vm != self && depth != null && depth > longest) {
+				victim = vm;
+				longest = depth;
+			}
+		}
+		VMConnect stub = victim == -1 ? null : stub(victim);
+		if (stub == null) return new QueuedRequest[0];
+		try {
+			QueuedRequest[] stolen = stub.steal(max);
+			depths.put(victim, Math.max(0, longest - stolen.length));
+			return stolen;
+		} catch (RemoteException e) {
+			forget(victim);
+			return new QueuedRequest[0];
+		}
+	}
+
+	/**
+	 * Reload membership from master periodically, reporting dispatched requests
+	 * @param force reload now
+	 */
+	public synchronized void refresh(boolean force) {
+		long now = System.currentTimeMillis();
+		if (!force && now - refreshed < REFRESH) return;
+		refreshed = now;
+		try {
+			Membership membership = master.membership(dispatched.getAndSet(0));
+			for (int i = 0; i < membership.ids.length; i ++) depths.put(membership.ids[i], membership.depths[i]);
+			ids = membership.ids;
+		} catch (RemoteException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Power of two choices: the shorter queue of two random VMs
+	 * @return VM id, -1 if none known
+	 */
+	private int choose() {
+		int[] members = ids;
+		if (members.length == 0) return -1;
+		int a = members[random.nextInt(members.length)];
+		int b = members[random.nextInt(members.length)];
+		return depth(a) <= depth(b) ? a : b;
+	}
+
+	private int depth(int vm) {
+		Integer depth = depths.get(vm);
+		return depth == null ? 0 : depth;
+	}
+
+	/**
+	 * Get RMI object of a middle tier VM, looked up once
+	 * @param vm VM id
+	 * @return RMI object, null if not bound
+	 */
+	private VMConnect stub(int vm) {
+		VMConnect stub = stubs.get(vm);
+		if (stub != null) return stub;
+		try {
+			stub = (VMConnect) Naming.lookup("//localHost:" + port + "/VM_Connect_" + vm);
+			stubs.put(vm, stub);
+			return stub;
+		} catch (Exception e) {
+			forget(vm);
+			return null;
+		}
+	}
+
+	/**
+	 * Stop using an unreachable VM until master lists it again
+	 * @param vm VM id
+	 */
+	private void forget(int vm) {
+		stubs.remove(vm);
+		depths.remove(vm);
+		int[] members = ids;
+		int[] rest = new int[members.length];
+		int n = 0;
+		for (int member : members) {
+			if (member != vm) rest[n ++] = member;
+		}
+		ids = java.util.Arrays.copyOf(rest, n);
+	}
+}
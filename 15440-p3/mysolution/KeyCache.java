@@ -0,0 +1,216 @@
+/*
+ * This is a bounded cache for database replies.
+ * Entries are kept in LRU order and expire after a TTL. When full, a new key
+ * replaces the LRU entry only if it has been asked for more often, estimated
+ * by a count-min sketch that is halved periodically so old popularity fades.
+ * A fill is stamped when its fetch starts; invalidating the key drops the stamp,
+ * so only fills of changed keys are discarded.
+ * Author: Yuqi Liu
+ */
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class KeyCache {
+	private static final int DEPTH = 4;    // sketch rows
+	private static final int[] SEED = { 0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F };   // odd multiplier of each row
+
+	private final int capacity;            // maximum entries
+	private final long ttl;                // entry lifetime in ms, 0 for no expiry
+	private final LinkedHashMap<String, Entry> map;
+	private final int[][] sketch;          // access frequency estimation
+	private final int shift;               // keeps the top bits of a hash, log2(width) of them
+	private int samples = 0;               // accesses since last halving
+	private long clock = 0;                // last stamp given
+	private final Map<String, Long> fills = new HashMap<String, Long>();   // key - stamp of fill in flight
+
+	/* Metrics */
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long expirations = 0;
+	private long rejections = 0;
+	private long invalidations = 0;
+
+	private static class Entry {
+		final String value;
+		final long expiry;
+
+		Entry(String value, long expiry) {
+			this.value = value;
+			this.expiry = expiry;
+		}
+	}
+
+	/**
+	 * Cache constructor
+	 * @param capacity maximum entries
+	 * @param ttl entry lifetime in ms, 0 for no expiry
+	 */
+	public KeyCache(int capacity, long ttl) {
+		this.capacity = Math.max(1, capacity);
+		this.ttl = ttl;
+		this.map = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		int width = Integer.highestOneBit(Math.max(16, this.capacity * 2 - 1));
+		this.sketch = new int[DEPTH][width];
+		this.shift = 32 - Integer.numberOfTrailingZeros(width);
+	}
+
+	/**
+	 * Get a cached value, counting the access
+	 * @param key key
+	 * @return value, null if not cached or expired
+	 */
+	public synchronized String get(String key) {
+		record(key);
+		Entry entry = map.get(key);
+		if (entry != null && ttl > 0 && entry.expiry <= System.currentTimeMillis()) {
+			map.remove(key);
+			expirations ++;
+			entry = null;
+		}
+		if (entry == null) {
+			misses ++;
+			return null;
+		}
+		hits ++;
+		return entry.value;
+	}
+
+	/**
+	 * Check if a hot entry is close to expiry and should be fetched again ahead
+	 * @param key key
+	 * @param fraction refresh in the last fraction of TTL
+	 * @param hot minimum estimated accesses of the key
+	 * @return true if due
+	 */
+	public synchronized boolean refreshDue(String key, double fraction, int hot) {
+		if (ttl <= 0) return false;
+		Entry entry = map.get(key);
+		if (entry == null) return false;
+		long left = entry.expiry - System.currentTimeMillis();
+		return left > 0 && left < ttl * fraction && frequency(key) >= hot;
+	}
+
+	/**
+	 * Start a fill of a key, take its stamp before fetching the value to put
+	 * @param key key
+	 * @return stamp
+	 */
+	public synchronized long stamp(String key) {
+		// fills that never put only cost their entries, forget them all if too many
+		if (fills.size() >= capacity) fills.clear();
+		fills.put(key, ++ clock);
+		return clock;
+	}
+
+	/**
+	 * Cache a value fetched from database.
+	 * Ignored if the key was invalidated after the fetch started,
+	 * the value may be older than the invalidating write.
+	 * @param key key
+	 * @param value value, null is not cached
+	 * @param stamp stamp taken before fetching
+	 * @return true if cached
+	 */
+	public synchronized boolean put(String key, String value, long stamp) {
+		Long started = fills.get(key);
+		if (started == null || started != stamp) return false;
+		fills.remove(key);
+		if (value == null) return false;
+		if (!map.containsKey(key) && map.size() >= capacity) {
+			Iterator<Map.Entry<String, Entry>> it = map.entrySet().iterator();
+			String victim = it.next().getKey();
+			if (frequency(key) <= frequency(victim)) {
+				rejections ++;
+				return false;
+			}
+			it.remove();
+			evictions ++;
+		}
+		map.put(key, new Entry(value, System.currentTimeMillis() + ttl));
+		return true;
+	}
+
+	/**
+	 * Drop a key after it changed
+	 * @param key key
+	 */
+	public synchronized void invalidate(String key) {
+		fills.remove(key);
+		if (map.remove(key) != null) invalidations ++;
+	}
+
+	/**
+	 * Drop all keys starting with a prefix, such as all keys of an item
+	 * @param prefix key prefix
+	 */
+	public synchronized void invalidatePrefix(String prefix) {
+		Iterator<String> it = fills.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().startsWith(prefix)) it.remove();
+		}
+		it = map.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().startsWith(prefix)) {
+				it.remove();
+				invalidations ++;
+			}
+		}
+	}
+
+	/**
+	 * Hit ratio of all lookups
+	 * @return ratio between 0 and 1
+	 */
+	public synchronized double hitRatio() {
+		long total = hits + misses;
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * Count one access in the sketch, halve all counters every 10 * capacity accesses
+	 * @param key key
+	 */
+	private void record(String key) {
+		int hash = spread(key.hashCode());
+		for (int i = 0; i < DEPTH; i ++) {
+			int index = index(hash, i);
+			if (sketch[i][index] < Integer.MAX_VALUE) sketch[i][index] ++;
+		}
+		if (++ samples >= 10 * capacity) {
+			for (int[] row : sketch) {
+				for (int j = 0; j < row.length; j ++) row[j] >>>= 1;
+			}
+			samples = 0;
+		}
+	}
+
+	/**
+	 * Estimated access frequency
+	 * @param key key
+	 * @return smallest counter of the key
+	 */
+	private int frequency(String key) {
+		int hash = spread(key.hashCode());
+		int result = Integer.MAX_VALUE;
+		for (int i = 0; i < DEPTH; i ++) result = Math.min(result, sketch[i][index(hash, i)]);
+		return result;
+	}
+
+	private int index(int hash, int row) {
+		return (hash * SEED[row]) >>> shift;
+	}
+
+	private static int spread(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	public synchronized String toString() {
+		return String.format("Cache[size:%d/%d hit:%.3f hits:%d misses:%d evict:%d expire:%d reject:%d invalidate:%d]",
+				map.size(), capacity, hitRatio(), hits, misses, evictions, expirations, rejections, invalidations);
+	}
+}
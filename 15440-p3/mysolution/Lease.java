@@ -0,0 +1,17 @@
+/*
+ * This is a class for a batch of requests handed to a middle tier VM.
+ * Author: Yuqi Liu
+ */
+
+import java.io.Serializable;
+
+public class Lease implements Serializable {
+	private static final long serialVersionUID = 1L;
+	public QueuedRequest[] requests;   // requests to serve, in queue order
+	public boolean[] drops;            // drop decision of each request
+
+	public Lease(int size) {
+		requests = new QueuedRequest[size];
+		drops = new boolean[size];
+	}
+}
@@ -0,0 +1,17 @@
+/*
+ * This is a class for middle tier membership known by master.
+ * Author: Yuqi Liu
+ */
+
+import java.io.Serializable;
+
+public class Membership implements Serializable {
+	private static final long serialVersionUID = 1L;
+	public int[] ids;      // middle tier VM ids
+	public int[] depths;   // queue length last reported by each
+
+	public Membership(int size) {
+		ids = new int[size];
+		depths = new int[size];
+	}
+}
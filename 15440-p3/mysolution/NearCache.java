@@ -0,0 +1,65 @@
+/*
+ * This is a local cache of a middle tier VM in front of master's DB cache.
+ * Master's DB sends invalidations on writes, a short TTL covers lost ones.
+ * Author: Yuqi Liu
+ */
+
+import java.rmi.RemoteException;
+
+public class NearCache implements Cloud.DatabaseOps {
+	private static final int CAPACITY = Integer.getInteger("near.capacity", 1000);   // maximum cached keys
+	private static final long TTL = Long.getLong("near.ttl", 2000);                 // entry lifetime in ms
+
+	private final Cloud.DatabaseOps db;     // master's DB cache
+	private final KeyCache cache = new KeyCache(CAPACITY, TTL);
+
+	/**
+	 * Near cache constructor
+	 * @param db master's DB cache
+	 */
+	public NearCache(Cloud.DatabaseOps db) {
+		this.db = db;
+	}
+
+	@Override
+	public String get(String key) throws RemoteException {
+		String value = cache.get(key);
+		if (value != null) return value;
+		long since = cache.stamp(key);
+		value = db.get(key);
+		cache.put(key, value, since);
+		return value;
+	}
+
+	@Override
+	public boolean set(String key, String value, String auth) throws RemoteException {
+		try {
+			return db.set(key, value, auth);
+		} finally {
+			cache.invalidate(key);
+		}
+	}
+
+	@Override
+	public boolean transaction(String item, float price, int qty) throws RemoteException {
+		try {
+			return db.transaction(item, price, qty);
+		} finally {
+			cache.invalidatePrefix(item);
+		}
+	}
+
+	/**
+	 * Drop keys changed by a write of any VM
+	 * @param key changed key, or prefix of changed keys
+	 * @param prefix true if key is a prefix
+	 */
+	public void invalidate(String key, boolean prefix) {
+		if (prefix) cache.invalidatePrefix(key);
+		else cache.invalidate(key);
+	}
+
+	public String toString() {
+		return "Near" + cache.toString();
+	}
+}
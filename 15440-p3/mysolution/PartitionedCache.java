@@ -0,0 +1,151 @@
+/*
+ * This is a client of the partitioned DB cache, used by middle tier VMs.
+ * A get goes straight to the cache VM owning the key on the consistent hash ring.
+ * A write goes to the owner, then every other partition drops the keys,
+ * so no partition keeps a stale copy from before a ring change.
+ * The ring is reloaded from master periodically and after a failed call.
+ * A cache VM failing a call is reported to master, which drops it if unreachable.
+ * Author: Yuqi Liu
+ */
+
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class PartitionedCache implements Cloud.DatabaseOps {
+	private final VMConnect master;     // master RMI object
+	private final int port;             // RMI registry port
+	private final Map<Integer, CacheOps> stubs = new ConcurrentHashMap<Integer, CacheOps>();
+	private volatile CacheRing ring = new CacheRing(new int[0]);
+	private long refreshed = 0;         // last ring reload time
+
+	/**
+	 * Partitioned cache constructor
+	 * @param master master RMI object
+	 * @param port RMI registry port
+	 */
+	public PartitionedCache(VMConnect master, int port) {
+		this.master = master;
+		this.port = port;
+	}
+
+	@Override
+	public String get(String key) throws RemoteException {
+		for (int attempt = 0; attempt < 2; attempt ++) {
+			int owner = ring(attempt > 0).owner(key);
+			CacheOps db = stub(owner);
+			if (db == null) continue;
+			try {
+				return db.get(key);
+			} catch (RemoteException e) {
+				failed(owner);
+			}
+		}
+		// no partition reachable, master's own partition answers
+		return master.getCache().get(key);
+	}
+
+	@Override
+	public boolean set(String key, String value, String auth) throws RemoteException {
+		int owner = ring(false).owner(key);
+		CacheOps db = stub(owner);
+		boolean result;
+		try {
+			result = db != null ? db.set(key, value, auth) : master.getCache().set(key, value, auth);
+		} catch (RemoteException e) {
+			if (db != null) failed(owner);
+			throw e;
+		}
+		invalidateOthers(owner, key, false);
+		return result;
+	}
+
+	@Override
+	public boolean transaction(String item, float price, int qty) throws RemoteException {
+		int owner = ring(false).owner(item);
+		CacheOps db = stub(owner);
+		boolean result;
+		try {
+			result = db != null ? db.transaction(item, price, qty) : master.getCache().transaction(item, price, qty);
+		} catch (RemoteException e) {
+			if (db != null) failed(owner);
+			throw e;
+		}
+		invalidateOthers(owner, item, true);
+		return result;
+	}
+
+	/**
+	 * Drop changed keys on every partition except the one handling the write
+	 * @param owner partition handling the write
+	 * @param key changed key, or prefix of changed keys
+	 * @param prefix true if key is a prefix
+	 */
+	private void invalidateOthers(int owner, String key, boolean prefix) {
+		for (int id : ring.ids()) {
+			if (id == owner) continue;
+			CacheOps db = stub(id);
+			if (db == null) continue;
+			try {
+				db.invalidate(key, prefix);
+			} catch (RemoteException e) {
+				failed(id);
+			}
+		}
+	}
+
+	/**
+	 * Forget a cache VM's RMI object and report it to master,
+	 * reload the ring if master dropped it
+	 * @param id VM id
+	 */
+	private void failed(int id) {
+		stubs.remove(id);
+		try {
+			if (master.cacheFailed(id)) ring(true);
+		} catch (RemoteException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Get the ring, reloaded from master periodically
+	 * @param force reload now
+	 * @return current ring
+	 */
+	private synchronized CacheRing ring(boolean force) {
+		long now = System.currentTimeMillis();
+		if (force || now - refreshed >= Dispatcher.REFRESH) {
+			refreshed = now;
+			try {
+				ring = new CacheRing(master.getCacheIds());
+			} catch (RemoteException e) {
+				e.printStackTrace();
+			}
+		}
+		return ring;
+	}
+
+	/**
+	 * Get RMI object of a cache VM, looked up once
+	 * @param id VM id
+	 * @return RMI object, null if not bound
+	 */
+	private CacheOps stub(int id) {
+		if (id == -1) return null;
+		CacheOps db = stubs.get(id);
+		if (db != null) return db;
+		try {
+			db = (CacheOps) Naming.lookup("//localHost:" + port + "/DB_" + id);
+			stubs.put(id, db);
+			return db;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	public String toString() {
+		return ring.toString();
+	}
+}
@@ -0,0 +1,29 @@
+/*
+ * This is a predictive scaling policy.
+ * Arrival rate is forecast one VM boot time ahead, each tier gets enough VMs
+ * to serve it at target utilization given its service time,
+ * a middle tier VM counting as many servers as its workers,
+ * and middle tier gets extra VMs to drain the waiting queue within the horizon.
+ * Author: Yuqi Liu
+ */
+
+public class PredictivePolicy implements ScalingPolicy {
+	private static final long HORIZON = Long.getLong("scale.horizon", 5000);                 // VM boot time in ms
+	private static final double UTILIZATION = Double.parseDouble(System.getProperty("scale.utilization", "0.8"));
+	private static final int MAX_FRONT = Integer.getInteger("scale.maxFront", 4);           // frontend limit
+	private static final int MAX_MIDDLE = Integer.getInteger("scale.maxMiddle", 16);        // middle tier limit
+
+	@Override
+	public int[] targets(Load load) {
+		double rate = load.arrivals.forecast(load.now, HORIZON);
+		int front = (int) Math.ceil(rate * load.frontMs / 1000 / UTILIZATION);
+		double workers = Math.max(1, load.middleWorkers);
+		int middle = (int) Math.ceil(rate * load.middleMs / 1000 / UTILIZATION / workers);
+		middle += (int) Math.ceil(load.queue * load.middleMs / HORIZON / workers);
+		return new int[] { bound(front, MAX_FRONT), bound(middle, MAX_MIDDLE) };
+	}
+
+	private static int bound(int target, int max) {
+		return Math.max(1, Math.min(max, target));
+	}
+}
@@ -0,0 +1,25 @@
+/*
+ * This is a class for a request with its arrival time and deadline.
+ * Author: Yuqi Liu
+ */
+
+import java.io.Serializable;
+
+public class QueuedRequest implements Serializable {
+	private static final long serialVersionUID = 1L;
+	public final Cloud.FrontEndOps.Request request;   // client request
+	public final long arrival;                        // time frontend got it, in ms
+	public final long deadline;                       // time client gives up, in ms
+	public long seq;                                  // order of offer in current queue
+
+	/**
+	 * Queued request constructor, deadline follows from request type
+	 * @param request client request
+	 * @param arrival time frontend got it
+	 */
+	public QueuedRequest(Cloud.FrontEndOps.Request request, long arrival) {
+		this.request = request;
+		this.arrival = arrival;
+		this.deadline = arrival + (request.isPurchase ? Cloud.CLIENT_PURCHASE_TIMEOUT : Cloud.CLIENT_BROWSE_TIMEOUT);
+	}
+}
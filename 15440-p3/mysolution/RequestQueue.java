@@ -0,0 +1,256 @@
+/*
+ * This is a request queue of one VM, holding requests with their deadlines.
+ *
+ * Requests are ordered by a discipline chosen with -Dsched.discipline:
+ *   fifo - arrival order
+ *   edf  - earliest deadline first (default)
+ *   lifo - adaptive LIFO, arrival order until the queue has not been empty
+ *          for -Dsched.overload ms, then newest first so fresh requests still
+ *          make their deadline while old ones are shed
+ * Browse and purchase requests are kept apart, with weights -Dsched.browseWeight
+ * and -Dsched.purchaseWeight. Under edf the next request is the class head with
+ * the least slack divided by its class weight, otherwise classes take turns
+ * by smooth weighted round robin.
+ * The owner takes from the urgent end, thieves take from the other end.
+ * Author: Yuqi Liu
+ */
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class RequestQueue {
+	public static final String FIFO = "fifo";
+	public static final String EDF = "edf";
+	public static final String LIFO = "lifo";
+	private static final long OVERLOAD = Long.getLong("sched.overload", 500);   // busy time before LIFO
+	private static final int BROWSE = 0;
+	private static final int PURCHASE = 1;
+
+	private final String discipline;
+	private final double[] weights = new double[2];          // class weights
+	private final double[] current = new double[2];          // smooth weighted round robin state
+	private final List<TreeSet<QueuedRequest>> classes;      // waiting requests of each class
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private long seq = 0;                                    // offer counter
+	private int size = 0;                                    // waiting requests
+	private long empty_at = 0;                               // last time queue was empty
+
+	/**
+	 * Request queue with discipline and weights from system properties
+	 */
+	public RequestQueue() {
+		this(System.getProperty("sched.discipline", EDF),
+				Double.parseDouble(System.getProperty("sched.browseWeight", "1")),
+				Double.parseDouble(System.getProperty("sched.purchaseWeight", "2")));
+	}
+
+	/**
+	 * Request queue constructor
+	 * @param discipline fifo, edf or lifo
+	 * @param browse weight of browse requests
+	 * @param purchase weight of purchase requests
+	 */
+	@SuppressWarnings("unchecked")
+	public RequestQueue(String discipline, double browse, double purchase) {
+		this.discipline = discipline;
+		this.weights[BROWSE] = browse;
+		this.weights[PURCHASE] = purchase;
+		Comparator<QueuedRequest> order = discipline.equals(EDF) ? new Comparator<QueuedRequest>() {
+			public int compare(QueuedRequest a, QueuedRequest b) {
+				if (a.deadline != b.deadline) return a.deadline < b.deadline ? -1 : 1;
+				return Long.compare(a.seq, b.seq);
+			}
+		} : new Comparator<QueuedRequest>() {
+			public int compare(QueuedRequest a, QueuedRequest b) {
+				if (a.arrival != b.arrival) return a.arrival < b.arrival ? -1 : 1;
+				return Long.compare(a.seq, b.seq);
+			}
+		};
+		classes = Arrays.asList(new TreeSet<QueuedRequest>(order), new TreeSet<QueuedRequest>(order));
+	}
+
+	/**
+	 * Add a request
+	 * @param r request
+	 */
+	public void offer(QueuedRequest r) {
+		offer(r, System.currentTimeMillis());
+	}
+
+	/**
+	 * Add a request, see offer(r)
+	 * @param now current time in ms
+	 */
+	public void offer(QueuedRequest r, long now) {
+		lock.lock();
+		try {
+			if (size == 0) empty_at = now;
+			r.seq = seq ++;
+			classes.get(classOf(r)).add(r);
+			size ++;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take the next request without waiting
+	 * @return request, null if empty
+	 */
+	public QueuedRequest poll() {
+		return take(System.currentTimeMillis());
+	}
+
+	/**
+	 * Take the next request without waiting, see poll()
+	 * @param now current time in ms
+	 * @return request, null if empty
+	 */
+	public QueuedRequest take(long now) {
+		lock.lock();
+		try {
+			if (size == 0) return null;
+			boolean overloaded = discipline.equals(LIFO) && now - empty_at > OVERLOAD;
+			TreeSet<QueuedRequest> set = classes.get(pick(now));
+			QueuedRequest r = overloaded ? set.pollLast() : set.pollFirst();
+			if (-- size == 0) empty_at = now;
+			return r;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Look at the most urgent waiting request, by deadline
+	 * @return request, null if empty
+	 */
+	public QueuedRequest peek() {
+		lock.lock();
+		try {
+			QueuedRequest result = null;
+			for (TreeSet<QueuedRequest> set : classes) {
+				if (set.isEmpty()) continue;
+				QueuedRequest r = set.first();
+				if (result == null || r.deadline < result.deadline) result = r;
+			}
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take the next request, wait if empty
+	 * @param timeout waiting time in ms
+	 * @return request, null if timeout
+	 */
+	public QueuedRequest poll(long timeout) {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		lock.lock();
+		try {
+			while (size == 0) {
+				if (nanos <= 0) return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return take(System.currentTimeMillis());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take next requests
+	 * @param to list to add to
+	 * @param max maximum requests
+	 * @return requests taken
+	 */
+	public int drain(List<QueuedRequest> to, int max) {
+		lock.lock();
+		try {
+			long now = System.currentTimeMillis();
+			int n = 0;
+			while (n < max && size > 0) {
+				to.add(take(now));
+				n ++;
+			}
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Give away up to half of the queue from the least urgent end of the longest classes
+	 * @param max maximum requests
+	 * @return requests stolen
+	 */
+	public QueuedRequest[] steal(int max) {
+		lock.lock();
+		try {
+			boolean overloaded = discipline.equals(LIFO) && System.currentTimeMillis() - empty_at > OVERLOAD;
+			int n = Math.min(max, size / 2);
+			QueuedRequest[] stolen = new QueuedRequest[n];
+			for (int i = 0; i < n; i ++) {
+				TreeSet<QueuedRequest> set = classes.get(BROWSE).size() >= classes.get(PURCHASE).size()
+						? classes.get(BROWSE) : classes.get(PURCHASE);
+				stolen[i] = overloaded ? set.pollFirst() : set.pollLast();
+				size --;
+			}
+			return stolen;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Number of waiting requests
+	 * @return queue length
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Choose a non-empty class: least weighted slack under edf,
+	 * smooth weighted round robin otherwise
+	 * @param now current time in ms
+	 * @return class index
+	 */
+	private int pick(long now) {
+		if (classes.get(BROWSE).isEmpty()) return PURCHASE;
+		if (classes.get(PURCHASE).isEmpty()) return BROWSE;
+		if (discipline.equals(EDF)) {
+			double browse = (classes.get(BROWSE).first().deadline - now) / weights[BROWSE];
+			double purchase = (classes.get(PURCHASE).first().deadline - now) / weights[PURCHASE];
+			return purchase < browse ? PURCHASE : BROWSE;
+		}
+		current[BROWSE] += weights[BROWSE];
+		current[PURCHASE] += weights[PURCHASE];
+		int result = current[PURCHASE] > current[BROWSE] ? PURCHASE : BROWSE;
+		current[result] -= weights[BROWSE] + weights[PURCHASE];
+		return result;
+	}
+
+	private static int classOf(QueuedRequest r) {
+		return r.request.isPurchase ? PURCHASE : BROWSE;
+	}
+
+	public String toString() {
+		return "Queue[" + discipline + " browse:" + classes.get(BROWSE).size() + " purchase:" + classes.get(PURCHASE).size() + "]";
+	}
+}
@@ -0,0 +1,28 @@
+/*
+ * This is an interface for scaling policies of the master.
+ * Author: Yuqi Liu
+ */
+
+public interface ScalingPolicy {
+	/**
+	 * Load view of the master, taken for each decision
+	 */
+	class Load {
+		public long now;                    // current time in ms
+		public int front;                   // frontend VMs, running or booting, master included
+		public int middle;                  // middle tier VMs, running or booting
+		public int frontQueue;              // requests waiting for frontends
+		public int queue;                   // requests waiting for middle tier
+		public double frontMs;              // frontend service time per request
+		public double middleMs;             // middle tier service time per request
+		public double middleWorkers;        // concurrent workers per middle tier VM
+		public ArrivalEstimator arrivals;   // request arrival rate
+	}
+
+	/**
+	 * Compute target VM count of each tier
+	 * @param load current load
+	 * @return {frontend target, middle tier target}
+	 */
+	int[] targets(Load load);
+}
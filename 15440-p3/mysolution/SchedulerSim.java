@@ -0,0 +1,129 @@
+/*
+ * This is a simulation comparing request queue disciplines under bursty load.
+ * One queue feeds a number of workers. Arrivals alternate between a calm phase
+ * below capacity and a burst above it, service times are exponential and
+ * one in ten requests is a purchase. Each discipline runs the same arrival
+ * trace, with and without deadline admission, and goodput is reported.
+ *
+ * Usage: java SchedulerSim [workers] [service_ms] [seconds] [seed]
+ * Author: Yuqi Liu
+ */
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+public class SchedulerSim {
+	private static final double CALM = 0.5;           // calm arrival rate relative to capacity
+	private static final double BURST = 2.0;          // burst arrival rate relative to capacity
+	private static final double CALM_MS = 4000;       // mean calm phase length
+	private static final double BURST_MS = 1500;      // mean burst phase length
+	private static final double PURCHASES = 0.1;      // purchase share
+
+	/**
+	 * Generate a bursty arrival trace
+	 * @param capacity requests per ms the workers can serve
+	 * @param length trace length in ms
+	 * @param random random source
+	 * @return requests in arrival order, with service times
+	 */
+	private static List<long[]> trace(double capacity, long length, double service_ms, Random random) {
+		List<long[]> result = new ArrayList<long[]>();
+		double now = 0;
+		boolean burst = false;
+		double phase_end = exp(random, CALM_MS);
+		while (now < length) {
+			double rate = capacity * (burst ? BURST : CALM);
+			now += exp(random, 1 / rate);
+			if (now >= phase_end) {
+				now = phase_end;
+				burst = !burst;
+				phase_end = now + exp(random, burst ? BURST_MS : CALM_MS);
+				continue;
+			}
+			long purchase = random.nextDouble() < PURCHASES ? 1 : 0;
+			result.add(new long[] { (long) now, purchase, Math.max(1, (long) exp(random, service_ms)) });
+		}
+		return result;
+	}
+
+	/**
+	 * Run one discipline over a trace
+	 * @param trace arrivals
+	 * @param discipline fifo, edf or lifo
+	 * @param workers concurrent workers
+	 * @param admit use deadline admission
+	 * @return {good browse, good purchase, browse, purchase}
+	 */
+	private static long[] run(List<long[]> trace, String discipline, int workers, boolean admit) {
+		RequestQueue queue = new RequestQueue(discipline, 1, 2);
+		Admission admission = new Admission();
+		admission.setConcurrency(workers);
+		PriorityQueue<long[]> busy = new PriorityQueue<long[]>(workers, new java.util.Comparator<long[]>() {
+			public int compare(long[] a, long[] b) { return Long.compare(a[0], b[0]); }
+		});
+		Map<QueuedRequest, Long> service = new IdentityHashMap<QueuedRequest, Long>();   // service time of each request
+		long[] result = new long[4];
+		int next = 0;
+		while (next < trace.size() || !busy.isEmpty() || queue.size() > 0) {
+			// next event: an arrival, or a worker finishing
+			long arrival = next < trace.size() ? trace.get(next)[0] : Long.MAX_VALUE;
+			long finish = busy.isEmpty() ? Long.MAX_VALUE : busy.peek()[0];
+			long now;
+			if (arrival <= finish && arrival != Long.MAX_VALUE) {
+				now = arrival;
+				long[] a = trace.get(next ++);
+				Cloud.FrontEndOps.Request r = new Cloud.FrontEndOps.Request();
+				r.isPurchase = a[1] == 1;
+				r.id = next;
+				QueuedRequest q = new QueuedRequest(r, now);
+				service.put(q, a[2]);
+				result[r.isPurchase ? 3 : 2] ++;
+				if (!admit || admission.admit(q, queue.size(), now)) queue.offer(q, now);
+			} else if (finish != Long.MAX_VALUE) {
+				now = finish;
+				busy.poll();
+			} else {
+				break;
+			}
+
+			// idle workers take requests
+			while (busy.size() < workers) {
+				QueuedRequest q = queue.take(now);
+				if (q == null) break;
+				long service_ms = service.remove(q);
+				if (admit && admission.late(q, now)) continue;
+				long end = now + service_ms;
+				admission.served(q, now, end);
+				if (end <= q.deadline) result[q.request.isPurchase ? 1 : 0] ++;
+				busy.add(new long[] { end });
+			}
+		}
+		return result;
+	}
+
+	private static double exp(Random random, double mean) {
+		return -mean * Math.log(1 - random.nextDouble());
+	}
+
+	public static void main(String[] args) {
+		int workers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		double service_ms = args.length > 1 ? Double.parseDouble(args[1]) : 200;
+		long length = (args.length > 2 ? Long.parseLong(args[2]) : 600) * 1000;
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 15440;
+
+		List<long[]> trace = trace(workers / service_ms, length, service_ms, new Random(seed));
+		System.out.println(String.format("workers:%d service:%.0fms requests:%d", workers, service_ms, trace.size()));
+		System.out.println(String.format("%-6s %-9s %8s %8s %8s", "queue", "admission", "goodput", "browse", "purchase"));
+		for (boolean admit : new boolean[] { false, true }) {
+			for (String discipline : new String[] { RequestQueue.FIFO, RequestQueue.EDF, RequestQueue.LIFO }) {
+				long[] r = run(trace, discipline, workers, admit);
+				System.out.println(String.format("%-6s %-9s %7.1f%% %7.1f%% %7.1f%%", discipline, admit ? "deadline" : "none",
+						100.0 * (r[0] + r[1]) / (r[2] + r[3]), 100.0 * r[0] / r[2], 100.0 * r[1] / r[3]));
+			}
+		}
+	}
+}
@@ -12,11 +12,13 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class Server extends UnicastRemoteObject implements VMConnect{
@@ -28,25 +30,46 @@ public class Server extends UnicastRemoteObject implements VMConnect{
 	public static ServerLib SL;
 	public static DB cache = null;
 	public static int cache_id = 1;
+	public static Autoscaler scaler = null;   // scaling decisions, master only
+	public static Dispatcher dispatcher = null;   // pushes requests to middle tier, master only
+	public static NearCache near = null;          // local cache in front of master's DB, middle tier only
 
 	/* Scale Policy Parameters */
 	public static final double frontend_weight = 1.5;
 	public static final double mid_weight = 1.5;      // middle scale out weight
-	public static final double drop_weight = 1.15;    // drop rate for queue length
 	public static final double initial_weight = 0.7;  // initial number of VMs
 	public static final int timeout_middle = 600;     // timeout value
 	public static final int timeout_num = 3;          // timeout number for frontend
 	public static final int timeout_num_middle = 2;   // timeout number for middle
+	public static final int steal_wait = 100;         // own queue wait before stealing
 
 	/* Current running VM lists */
-	public static List<Integer> VMs_middle = new ArrayList<Integer>();
-	public static List<Integer> VMs_frontend = new ArrayList<Integer>();
+	public static List<Integer> VMs_middle = Collections.synchronizedList(new ArrayList<Integer>());
+	public static List<Integer> VMs_frontend = Collections.synchronizedList(new ArrayList<Integer>());
+	public static List<Integer> VMs_cache = Collections.synchronizedList(new ArrayList<Integer>());
 	public static ConcurrentHashMap<Integer, Integer> map = new ConcurrentHashMap<Integer, Integer>();
-	// master request queues for all middle server to pull
-	public static BlockingQueue<Cloud.FrontEndOps.Request> queue = new LinkedBlockingQueue<Cloud.FrontEndOps.Request>();
+	// number of VMs of each role in map, kept by setRole and removeRole
+	public static AtomicIntegerArray counts = new AtomicIntegerArray(4);
+	// middle tier VM id - last reported queue length, on master
+	public static ConcurrentHashMap<Integer, Integer> depths = new ConcurrentHashMap<Integer, Integer>();
+	// request queue: own queue on middle tier, boot and fallback queue on master
+	public static RequestQueue queue = new RequestQueue();
+	// admission control of this VM's queue
+	public static Admission admission = new Admission();
 	public static double frontLen = 0;
 	public static double middleLen = 0;
 	public static boolean terminate = false;
+	public static volatile boolean retiring = false;     // master is taking this middle VM out
+	// master hands queues of retiring middle VMs back off its request loop
+	private static final ExecutorService retirer = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "retire-middle");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private static volatile boolean parked = false;      // control loop stopped leasing for retirement
+	private static final AtomicInteger processing = new AtomicInteger();   // requests being processed by workers
 
 	/* GLOBAL MACRO */
 	public static final int FRONTEND = 0;
@@ -56,6 +79,10 @@ public class Server extends UnicastRemoteObject implements VMConnect{
 	public static final int FRONTEND_PROCESS_TIME = 260;
 	public static final int COOL_DOWN_TIME = 7000;
 	public static final int CACHE_BOOT = 500;
+	public static final int LEASE_MAX = 4;           // maximum requests of one lease
+	public static final int WORKERS = Integer.getInteger("middle.workers", 1);          // initial workers of a middle tier VM
+	public static final int MAX_WORKERS = Integer.getInteger("middle.maxWorkers", 8);   // maximum workers of a middle tier VM
+	public static final int CACHE_VMS = Integer.getInteger("cache.vms", 0);   // cache VMs booted besides master's partition
 
 	protected Server() throws RemoteException {
 		super();
@@ -88,14 +115,19 @@ public class Server extends UnicastRemoteObject implements VMConnect{
 		int front_num = 0;      // initial frontend number
 		if (server != null) {
 			role = MASTER;
-
-			// setting cache on the master
-			cache = new DB(args[0], args[1]);
-			map.put(id, CACHE);
+			scaler = new Autoscaler(server);
+			dispatcher = new Dispatcher(server, port);
+
+			// setting cache on the master, as the first partition, and start cache VMs
+			cache = new DB(args[0], args[1], server);
+			registry.bind("DB_" + id, cache);
+			for (int i = 0; i < CACHE_VMS; i ++)
+				setRole(SL.startVM(), CACHE);
+			setRole(id, CACHE);
 			SL.register_frontend();
-			map.put(id, FRONTEND);
+			setRole(id, FRONTEND);
 			VMs_frontend.add(id);
-			map.put(SL.startVM(), MIDDLE_TIER);
+			setRole(SL.startVM(), MIDDLE_TIER);
 
 			// measuring request interval while booting
 			Cloud.FrontEndOps.Request tmp = SL.getNextRequest();
@@ -116,9 +148,9 @@ public class Server extends UnicastRemoteObject implements VMConnect{
 
 			// Start VMs according to initial setting
 			for (int i = 0; i < middle_num; i ++)
-				map.put(SL.startVM(), MIDDLE_TIER);
+				setRole(SL.startVM(), MIDDLE_TIER);
 			for (int i = 0; i < front_num; i ++)
-				map.put(SL.startVM(), FRONTEND);
+				setRole(SL.startVM(), FRONTEND);
 		}
 
 		/* Get the role of the VM from master */
@@ -130,14 +162,16 @@ public class Server extends UnicastRemoteObject implements VMConnect{
 			frontendRoutine(master);
 		} else if (role == MIDDLE_TIER) {
 			middleRoutine(master);
+		} else if (role == CACHE) {
+			cacheRoutine(master, args[0], args[1], registry);
 		} else if (role == MASTER) {
-			masterRoutine(master, middle_num + 1);
+			masterRoutine(server, middle_num + 1);
 		}
 	}
 
 	/**
 	 * Master service routine function.
-	 * Act as a front end and cache, checking for scale out.
+	 * Act as a front end and cache, scaling is decided by the autoscaler.
 	 * @param master master RMI object
 	 * @param middle_num initial middle tier number
 	 * @throws RemoteException
@@ -147,52 +181,39 @@ public class Server extends UnicastRemoteObject implements VMConnect{
 		// Drop requests when booting
 		while (VMs_middle.size() == 0) {
 			Cloud.FrontEndOps.Request r = SL.getNextRequest();
-			queue.add(r);
+			scaler.arrive();
+			queue.offer(new QueuedRequest(r, System.currentTimeMillis()));
 			if (queue.size() > middle_num) {
-				SL.drop(queue.poll());
+				SL.drop(queue.poll().request);
 			}
 		}
 		frontLen = VMs_frontend.size();
 		middleLen = VMs_middle.size();
 		
-		long time = 0;
 		while (true) {
 			Cloud.FrontEndOps.Request r = SL.getNextRequest();
-			queue.put(r);
-
-			// get middle and front number
-			int front = 0;
-			int middle = 0;
-			for (int val : map.values()) {
-				if (val == FRONTEND) front ++;
-				if (val == MIDDLE_TIER) middle ++;
-			}
+			dispatcher.dispatch(new QueuedRequest(r, System.currentTimeMillis()));
 
-			// scale up when frontend queue is too long
+			// let the policy move each tier towards its target
 			frontLen = SL.getQueueLength();
-			if (frontLen >= 3 * front) {
-				long now = System.currentTimeMillis();
-				if (now - time > COOL_DOWN_TIME) {
-					scaleOut(SL, FRONTEND);
-					time = now;
-				}
-			}
+			scaler.tick(counts.get(FRONTEND), counts.get(MIDDLE_TIER), (int) frontLen, backlog());
 		}
 	}
 
 	/**
-	 * Front end routine. Get the request and push to request queue.
+	 * Front end routine. Get the request and push to a middle tier queue.
 	 * @param master Master server RMI
 	 * @throws RemoteException
 	 */
 	private static void frontendRoutine(VMConnect master) throws RemoteException {
 		SL.register_frontend();
 		master.addVM(id, FRONTEND);
+		Dispatcher dispatcher = new Dispatcher(master, port);
 		int timeouts = 0;
 		long start = System.currentTimeMillis();
 		while (true) {
 			Cloud.FrontEndOps.Request r = SL.getNextRequest();
-			master.addRequest(r);
+			dispatcher.dispatch(new QueuedRequest(r, System.currentTimeMillis()));
 			long end = System.currentTimeMillis();
 
 			// if timeout for two times, scale out
@@ -211,8 +232,26 @@ public class Server extends UnicastRemoteObject implements VMConnect{
 	}
 
 
+	/**
+	 * Cache VM routine. Serve one partition of the DB cache.
+	 * The RMI object keeps the VM running.
+	 * @param master Master server RMI
+	 * @param host host of RMI
+	 * @param str_port port of RMI
+	 * @param registry RMI registry
+	 * @throws RemoteException
+	 */
+	private static void cacheRoutine(VMConnect master, String host, String str_port, Registry registry) throws RemoteException {
+		cache = new DB(host, str_port, master);
+		registry.rebind("DB_" + id, cache);
+		master.addVM(id, CACHE);
+	}
+
+
 	/**
 	 * Middle layer machine service routine.
+	 * Serve own queue first, when empty steal from the longest peer queue,
+	 * then from master's queue. Requests that cannot finish in time are dropped.
 	 * @param master
 	 * @throws RemoteException
 	 * @throws MalformedURLException
@@ -225,37 +264,115 @@ public class Server extends UnicastRemoteObject implements VMConnect{
 		cache_id = master.getCacheId();
 		while (cache_id == -1) { cache_id = master.getCacheId(); }
 		int timeouts = 0;
-		int drops = 0;
-		Cloud.DatabaseOps db = master.getCache();
+		near = new NearCache(new PartitionedCache(master, port));
+		final Cloud.DatabaseOps db = near;
+		final VMConnect boss = master;
+		Dispatcher peers = new Dispatcher(master, port);
+		final AtomicLong busy = new AtomicLong();           // processing time since last report
+		final AtomicInteger served = new AtomicInteger();   // requests processed since last report
+		final AtomicInteger drops = new AtomicInteger();    // consecutive drops
+		long reported = System.currentTimeMillis();         // last report time
+
+		// workers take from own queue, this thread keeps it filled
+		ConcurrencyController controller = new ConcurrencyController(WORKERS, MAX_WORKERS);
+		WorkerPool workers = new WorkerPool("middle", new Runnable() {
+			public void run() {
+				QueuedRequest q = queue.poll(steal_wait);
+				if (q == null) return;
+
+				// drop if it cannot finish in time, if drop for two times, scale out
+				if (admission.late(q, System.currentTimeMillis())) {
+					SL.drop(q.request);
+					if (drops.incrementAndGet() == 2) {
+						drops.set(0);
+						try {
+							boss.scaleOut(MIDDLE_TIER);
+						} catch (RemoteException e) {
+							e.printStackTrace();
+						}
+					}
+					return;
+				}
+				drops.set(0);
+				processing.incrementAndGet();
+				long start = System.currentTimeMillis();
+				try {
+					SL.processRequest(q.request, db);
+				} finally {
+					processing.decrementAndGet();
+				}
+				long end = System.currentTimeMillis();
+				admission.served(q, start, end);
+				busy.addAndGet(end - start);
+				served.incrementAndGet();
+			}
+		});
+		workers.resize(WORKERS);
+		admission.setConcurrency(workers.size());
 
 		// check for scale policy
 		while (true) {
-			Cloud.FrontEndOps.Request r = master.getRequest();
+			// being retired, master takes the queue back
+			if (retiring) {
+				parked = true;
+				try {
+					Thread.sleep(steal_wait);
+				} catch (InterruptedException e) {
+					return;
+				}
+				continue;
+			}
 
-			// if get a requset
-			if (r != null) {
-				timeouts = 0;
+			// report queue length, service time and workers to master, resize pool
+			long now = System.currentTimeMillis();
+			if (now - reported >= Dispatcher.REFRESH) {
+				int n = served.getAndSet(0);
+				long time = busy.getAndSet(0);
+				master.heartbeat(id, queue.size(), n, time, workers.size());
+				workers.resize(controller.update(n > 0 ? (double) time / n : 0, queue.size()));
+				admission.setConcurrency(workers.size());
+				if (n > 0) System.out.println(admission.toString() + " " + controller.toString());
+				reported = now;
+			}
 
-				// if drop for two times, scale out
-				if (master.drop()) {
-					SL.drop(r);
-					drops ++;
-					if (drops == 2) {
-						master.scaleOut(MIDDLE_TIER);
-						drops = 0;
-					}
-					continue;
+			// enough queued for the workers
+			int want = Math.max(LEASE_MAX, workers.size());
+			if (queue.size() >= workers.size()) {
+				try {
+					Thread.sleep(steal_wait);
+				} catch (InterruptedException e) {
+					return;
 				}
-				drops = 0;
-				SL.processRequest(r, db);
+				continue;
+			}
+
+			// steal from peers, then take a batch from master
+			QueuedRequest[] stolen = peers.steal(id, want);
+			for (QueuedRequest s : stolen) queue.offer(s);
+			if (stolen.length > 0) {
+				timeouts = 0;
+				continue;
 			}
 
-			// if timeout for three times, scale in
-			else if (r == null) {
+			Lease lease = master.lease(id, want);
+			for (int i = 0; i < lease.requests.length; i ++) {
+				if (lease.drops[i]) SL.drop(lease.requests[i].request);
+				else queue.offer(lease.requests[i]);
+			}
+
+			// if timeout for three times while idle, scale in
+			if (lease.requests.length > 0 || queue.size() > 0) {
+				timeouts = 0;
+			} else {
 				timeouts ++;
 				if (timeouts == timeout_num) {
 					System.out.println("ScaleIn middle!");
-					master.scaleIn_middle(id);
+					parked = true;
+					retiring = true;
+					if (!master.scaleIn_middle(id)) {
+						retiring = false;
+						parked = false;
+					}
 				}
 			}
 		}
@@ -282,7 +399,7 @@ public class Server extends UnicastRemoteObject implements VMConnect{
 			} catch (MalformedURLException | RemoteException | NotBoundException e) {
 				e.printStackTrace();
 			}
-			map.remove(remove_id);
+			removeRole(remove_id);
 			SL.endVM(remove_id);
 			return true;
 		}
@@ -290,34 +407,74 @@ public class Server extends UnicastRemoteObject implements VMConnect{
 	}
 
 	/**
-	 * Scale in a middle.
+	 * Scale in a middle, its queue is handed back to master in background.
 	 * @param id VM id
 	 * @return
 	 * @throws RemoteException
 	 */
 	public boolean scaleIn_middle (int id) throws RemoteException {
 		int remove_id = -1;
-		if (VMs_middle.size() > 1) {
+		// only one caller takes a VM out
+		if (VMs_middle.size() > 1 && VMs_middle.remove(new Integer(id))) {
 			remove_id = id;
-			VMs_middle.remove(new Integer(id));
-		} 
+		}
 		
 		if (remove_id != -1) {
-			VMConnect removed;
-			try {
-				removed = (VMConnect) Naming.lookup("//localHost:"+ port + "/VM_Connect_" + remove_id);
-				removed.terminate();
-			} catch (MalformedURLException | RemoteException | NotBoundException e) {
-				e.printStackTrace();
-			}
-			map.remove(remove_id);
-			SL.endVM(remove_id);
+			// out of membership first, then take its queue back before it ends,
+			// in background since retire waits for the VM's lease and requests in progress
+			depths.remove(remove_id);
+			removeRole(remove_id);
+			final int retired = remove_id;
+			retirer.execute(new Runnable() {
+				public void run() {
+					try {
+						VMConnect removed = (VMConnect) Naming.lookup("//localHost:"+ port + "/VM_Connect_" + retired);
+						for (QueuedRequest q : removed.retire()) offer(q);
+						removed.terminate();
+					} catch (MalformedURLException | RemoteException | NotBoundException e) {
+						e.printStackTrace();
+					}
+					SL.endVM(retired);
+				}
+			});
 			return true;
 		}
 		return false;
 	}
 
 
+	/**
+	 * Record the role of a VM, keeping role counts
+	 * @param vm VM id
+	 * @param type role
+	 */
+	public static void setRole(int vm, int type) {
+		Integer old = map.put(vm, type);
+		if (old != null) counts.decrementAndGet(old);
+		counts.incrementAndGet(type);
+	}
+
+	/**
+	 * Forget a VM, keeping role counts
+	 * @param vm VM id
+	 */
+	public static void removeRole(int vm) {
+		Integer old = map.remove(vm);
+		if (old != null) counts.decrementAndGet(old);
+	}
+
+
+	/**
+	 * Requests waiting for middle tier: master's queue and reported middle tier queues
+	 * @return number of requests
+	 */
+	public static int backlog() {
+		int total = queue.size();
+		for (int depth : depths.values()) total += depth;
+		return total;
+	}
+
+
 	/**
 	 * Scale out
 	 * @param SL
@@ -325,7 +482,24 @@ public class Server extends UnicastRemoteObject implements VMConnect{
      */
 	public static void scaleOut(ServerLib SL, int type) {
 		System.out.println("Scale Out!");
-		map.put(SL.startVM(), type);
+		setRole(SL.startVM(), type);
+	}
+
+	/**
+	 * Get the last registered VM of a tier, which scales in first.
+	 * The master itself is never chosen.
+	 * @param type: 0 for front end, 1 for middle layer
+	 * @return VM id, -1 if none
+	 */
+	public static int lastVM(int type) {
+		List<Integer> VMs = type == FRONTEND ? VMs_frontend : VMs_middle;
+		synchronized (VMs) {
+			for (int i = VMs.size() - 1; i >= 0; i --) {
+				int vm = VMs.get(i);
+				if (vm != id) return vm;
+			}
+		}
+		return -1;
 	}
 
 	/**
@@ -334,7 +508,7 @@ public class Server extends UnicastRemoteObject implements VMConnect{
      */
 	public void scaleOut(int type) throws RemoteException {
 		System.out.println("Scale Out!");
-		map.put(SL.startVM(), type);
+		setRole(SL.startVM(), type);
 	}
 
 	/**
@@ -367,22 +541,113 @@ public class Server extends UnicastRemoteObject implements VMConnect{
 	 * @throws RemoteException
 	 */
 	public void addRequest(Cloud.FrontEndOps.Request r) throws RemoteException {
-		queue.add(r);
+		queue.offer(new QueuedRequest(r, System.currentTimeMillis()));
 	}
 
 
 	/**
-	 * Pull a request from request queue
-	 * @return Request from queue head
+	 * Push a request to this VM's own queue, or drop it if it cannot finish in time
+	 * @param q request with deadline
+	 * @return queue length after push
 	 * @throws RemoteException
 	 */
-	public Cloud.FrontEndOps.Request getRequest() throws RemoteException {
+	public int offer(QueuedRequest q) throws RemoteException {
+		// a stale dispatcher forgets this VM and tries another
+		if (retiring) throw new RemoteException("VM " + id + " is retiring");
+		if (admission.admit(q, queue.size(), System.currentTimeMillis())) queue.offer(q);
+		else SL.drop(q.request);
+		return queue.size();
+	}
+
+
+	/**
+	 * Stop leasing and accepting requests, give the own queue back to master.
+	 * Waits for the lease in progress and for requests being processed.
+	 * @return requests not processed
+	 * @throws RemoteException
+	 */
+	public QueuedRequest[] retire() throws RemoteException {
+		retiring = true;
 		try {
-			return queue.poll(timeout_middle, TimeUnit.MILLISECONDS);
+			long until = System.currentTimeMillis() + 2 * timeout_middle;
+			while (!parked && System.currentTimeMillis() < until) Thread.sleep(10);
+			List<QueuedRequest> rest = new ArrayList<QueuedRequest>();
+			queue.drain(rest, Integer.MAX_VALUE);
+			until = System.currentTimeMillis() + Cloud.CLIENT_PURCHASE_TIMEOUT;
+			while (processing.get() > 0 && System.currentTimeMillis() < until) Thread.sleep(10);
+			return rest.toArray(new QueuedRequest[rest.size()]);
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted retiring", e);
+		}
+	}
+
+
+	/**
+	 * Give requests of this VM's own queue to an idle peer
+	 * @param max maximum requests
+	 * @return requests given, up to half of the queue
+	 * @throws RemoteException
+	 */
+	public QueuedRequest[] steal(int max) throws RemoteException {
+		return queue.steal(max);
+	}
+
+
+	/**
+	 * Get middle tier membership, reporting requests dispatched by the caller
+	 * @param dispatched requests dispatched since last call
+	 * @return middle tier VMs and their queue lengths
+	 * @throws RemoteException
+	 */
+	public Membership membership(int dispatched) throws RemoteException {
+		if (dispatched > 0 && scaler != null) scaler.arrive(dispatched);
+		Integer[] ids = VMs_middle.toArray(new Integer[0]);
+		Membership membership = new Membership(ids.length);
+		for (int i = 0; i < ids.length; i ++) {
+			Integer depth = depths.get(ids[i]);
+			membership.ids[i] = ids[i];
+			membership.depths[i] = depth == null ? 0 : depth;
 		}
-		return null;
+		return membership;
+	}
+
+
+	/**
+	 * Drop keys changed by a write from this VM's near cache
+	 * @param key changed key, or prefix of changed keys
+	 * @param prefix true if key is a prefix
+	 * @throws RemoteException
+	 */
+	public void invalidate(String key, boolean prefix) throws RemoteException {
+		if (near != null) near.invalidate(key, prefix);
+	}
+
+
+	/**
+	 * Periodic report of a middle tier VM
+	 * @param id VM id
+	 * @param depth own queue length
+	 * @param served requests processed since last report
+	 * @param busy processing time of them in ms
+	 * @param workers concurrent workers of the VM
+	 * @throws RemoteException
+	 */
+	public void heartbeat(int id, int depth, int served, long busy, int workers) throws RemoteException {
+		if (VMs_middle.contains(id)) depths.put(id, depth);
+		if (scaler != null) scaler.workers(workers);
+		if (served > 0 && scaler != null) scaler.serviced(MIDDLE_TIER, (double) busy / served);
+	}
+
+
+	/**
+	 * Pull a request from request queue
+	 * @return Request from queue head
+	 * @throws RemoteException
+	 */
+	public Cloud.FrontEndOps.Request getRequest() throws RemoteException {
+		QueuedRequest q = queue.poll(timeout_middle);
+		return q == null ? null : q.request;
 	}
 
 
@@ -398,25 +663,90 @@ public class Server extends UnicastRemoteObject implements VMConnect{
 		} else if (type == MIDDLE_TIER) {
 			if (!VMs_middle.contains(id)) VMs_middle.add(id);
 		} else if (type == CACHE) {
-			cache_id = id;
+			if (!VMs_cache.contains(id)) VMs_cache.add(id);
 		}
 	}
 
 
 	/**
 	 * If the request should be drop.
-	 * Based on current queue length
+	 * Based on whether the head of master's queue can still finish in time
 	 * @return True for drop, False for not drop
 	 * @throws RemoteException
 	 */
 	public boolean drop() throws RemoteException {
-		int middle = 0;
-		for (int val : map.values()) {
-			if (val == MIDDLE_TIER) {
-				middle ++;
-			}
+		QueuedRequest q = queue.peek();
+		return q != null && System.currentTimeMillis() + scaler.serviceTime(MIDDLE_TIER) > q.deadline;
+	}
+
+
+	/**
+	 * Lease a batch of requests of master's queue to a middle tier VM.
+	 * Waits for the first request like getRequest(), then takes a fair share of
+	 * the queue up to max. A request is marked to drop if it cannot finish in time
+	 * when served after the ones before it in the lease.
+	 * @param id VM id
+	 * @param max maximum requests
+	 * @return lease, empty if no request in time
+	 * @throws RemoteException
+	 */
+	public Lease lease(int id, int max) throws RemoteException {
+		QueuedRequest first = queue.poll(timeout_middle);
+		if (first == null) return new Lease(0);
+
+		List<QueuedRequest> taken = new ArrayList<QueuedRequest>();
+		taken.add(first);
+		int share = Math.min(max, 1 + queue.size() / Math.max(1, counts.get(MIDDLE_TIER)));
+		queue.drain(taken, share - 1);
+
+		Lease lease = new Lease(taken.size());
+		long now = System.currentTimeMillis();
+		double service = scaler.serviceTime(MIDDLE_TIER);
+		for (int i = 0; i < taken.size(); i ++) {
+			lease.requests[i] = taken.get(i);
+			lease.drops[i] = now + (i + 1) * service > taken.get(i).deadline;
+		}
+		return lease;
+	}
+
+
+	/**
+	 * Get partitions of the DB cache.
+	 * @return master's id and ids of registered cache VMs
+	 * @throws RemoteException
+	 */
+	public int[] getCacheIds() throws RemoteException {
+		Integer[] caches = VMs_cache.toArray(new Integer[0]);
+		int[] ids = new int[caches.length + 1];
+		ids[0] = id;
+		for (int i = 0; i < caches.length; i ++) ids[i + 1] = caches[i];
+		return ids;
+	}
+
+
+	/**
+	 * Report a cache VM that failed a call.
+	 * Dropped from the cache VMs if master cannot reach it either,
+	 * so the ring moves its keys to the other partitions.
+	 * @param id VM id
+	 * @return True if it was dropped
+	 * @throws RemoteException
+	 */
+	public boolean cacheFailed(int id) throws RemoteException {
+		if (!VMs_cache.contains(id)) return false;
+		try {
+			CacheOps db = (CacheOps) Naming.lookup("//localHost:" + port + "/DB_" + id);
+			db.invalidate("", false);   // cheap call, nothing is cached under empty key
+			return false;
+		} catch (MalformedURLException | RemoteException | NotBoundException e) {
+			// unreachable from master too
 		}
-		return queue.size() > (drop_weight * middle);
+		// only one reporter takes it out
+		if (!VMs_cache.remove(new Integer(id))) return false;
+		removeRole(id);
+		SL.endVM(id);
+		System.out.println("Cache VM " + id + " unreachable, dropped");
+		return true;
 	}
 
 
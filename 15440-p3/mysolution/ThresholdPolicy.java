@@ -0,0 +1,20 @@
+/*
+ * This is a threshold scaling policy.
+ * Scale out one frontend when frontend queue reaches 3 requests per frontend,
+ * at most once per cool down time. Middle tier scales on its own drops and timeouts.
+ * Author: Yuqi Liu
+ */
+
+public class ThresholdPolicy implements ScalingPolicy {
+	private long last = 0;   // last scale out time
+
+	@Override
+	public int[] targets(Load load) {
+		int front = load.front;
+		if (load.frontQueue >= 3 * load.front && load.now - last > Server.COOL_DOWN_TIME) {
+			front ++;
+			last = load.now;
+		}
+		return new int[] { front, load.middle };
+	}
+}
@@ -69,13 +69,96 @@ public interface VMConnect extends Remote {
 
 	/**
 	 * If the request should be drop.
-	 * Based on current queue length
+	 * Based on whether the head of master's queue can still finish in time
 	 * @return True for drop, False for not drop
 	 * @throws RemoteException
 	 */
 	public boolean drop() throws RemoteException;
 
 
+	/**
+	 * Lease a batch of requests of master's queue to a middle tier VM
+	 * @param id VM id
+	 * @param max maximum requests
+	 * @return lease, empty if no request in time
+	 * @throws RemoteException
+	 */
+	public Lease lease(int id, int max) throws RemoteException;
+
+
+	/**
+	 * Push a request to this VM's own queue, or drop it if it cannot finish in time
+	 * @param q request with deadline
+	 * @return queue length after push
+	 * @throws RemoteException
+	 */
+	public int offer(QueuedRequest q) throws RemoteException;
+
+
+	/**
+	 * Stop leasing and accepting requests, give the own queue back to master
+	 * @return requests not processed
+	 * @throws RemoteException
+	 */
+	public QueuedRequest[] retire() throws RemoteException;
+
+
+	/**
+	 * Give requests of this VM's own queue to an idle peer
+	 * @param max maximum requests
+	 * @return requests given, up to half of the queue
+	 * @throws RemoteException
+	 */
+	public QueuedRequest[] steal(int max) throws RemoteException;
+
+
+	/**
+	 * Get middle tier membership, reporting requests dispatched by the caller
+	 * @param dispatched requests dispatched since last call
+	 * @return middle tier VMs and their queue lengths
+	 * @throws RemoteException
+	 */
+	public Membership membership(int dispatched) throws RemoteException;
+
+
+	/**
+	 * Drop keys changed by a write from this VM's near cache
+	 * @param key changed key, or prefix of changed keys
+	 * @param prefix true if key is a prefix
+	 * @throws RemoteException
+	 */
+	public void invalidate(String key, boolean prefix) throws RemoteException;
+
+
+	/**
+	 * Periodic report of a middle tier VM
+	 * @param id VM id
+	 * @param depth own queue length
+	 * @param served requests processed since last report
+	 * @param busy processing time of them in ms
+	 * @param workers concurrent workers of the VM
+	 * @throws RemoteException
+	 */
+	public void heartbeat(int id, int depth, int served, long busy, int workers) throws RemoteException;
+
+
+	/**
+	 * Get partitions of the DB cache.
+	 * @return master's id and ids of registered cache VMs
+	 * @throws RemoteException
+	 */
+	public int[] getCacheIds() throws RemoteException;
+
+
+	/**
+	 * Report a cache VM that failed a call, it is dropped if master cannot reach it either
+	 * @param id VM id
+	 * @return True if it was dropped from the cache VMs
+	 * @throws RemoteException
+	 */
+	public boolean cacheFailed(int id) throws RemoteException;
+
+
 	/**
 	 * Get the cache VM id.
 	 * @return Cache VM id
@@ -0,0 +1,62 @@
+/*
+ * This is a resizable pool of worker threads running the same step in a loop.
+ * Shrinking lets surplus workers exit after their current step.
+ * Author: Yuqi Liu
+ */
+
+public class WorkerPool {
+	private final Runnable step;     // one unit of work, should return within a short wait
+	private final String name;       // thread name prefix
+	private int target = 0;          // wanted workers
+	private int running = 0;         // live workers
+
+	/**
+	 * Worker pool constructor, no worker is started
+	 * @param name thread name prefix
+	 * @param step one unit of work
+	 */
+	public WorkerPool(String name, Runnable step) {
+		this.name = name;
+		this.step = step;
+	}
+
+	/**
+	 * Set the number of workers
+	 * @param size wanted workers, at least 1
+	 */
+	public synchronized void resize(int size) {
+		target = Math.max(1, size);
+		while (running < target) {
+			running ++;
+			Thread worker = new Thread(name + "-" + running) {
+				public void run() { work(); }
+			};
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Number of workers wanted
+	 * @return pool size
+	 */
+	public synchronized int size() {
+		return target;
+	}
+
+	private void work() {
+		while (true) {
+			synchronized (this) {
+				if (running > target) {
+					running --;
+					return;
+				}
+			}
+			try {
+				step.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}